@@ -0,0 +1,127 @@
+package prometheus.exporter.jmh;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.StreamingOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import prometheus.exporter.JerseyMetricsResource;
+import prometheus.exporter.JerseyStatisticsCollector;
+import prometheus.exporter.SyntheticMonitoringStatistics;
+
+/**
+ * Cost of a single scrape of {@link JerseyStatisticsCollector}, by number of resource methods and
+ * time windows. Run with {@code -prof gc} to see the bytes allocated per scrape
+ * ({@code gc.alloc.rate.norm}).
+ * <p>
+ * Samples of idle methods are reused across scrapes; with {@code activeMethods} every method gets
+ * new requests before each scrape, so that all samples are computed again.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectorBenchmark {
+
+  @Param({"10", "1000", "10000", "50000"})
+  public int resourceMethods;
+
+  @Param({"1", "3", "6"})
+  public int timeWindows;
+
+  @Param({"false", "true"})
+  public boolean activeMethods;
+
+  private SyntheticMonitoringStatistics statistics;
+  private JerseyStatisticsCollector collector;
+  private CollectorRegistry registry;
+  private JerseyMetricsResource resource;
+  private final Writer discardingWriter = new DiscardingWriter();
+  private final OutputStream discardingStream = new DiscardingOutputStream();
+
+  @Setup
+  public void setUp() {
+    statistics = new SyntheticMonitoringStatistics((resourceMethods + 1) / 2, timeWindows);
+    collector = new JerseyStatisticsCollector(statistics);
+    registry = new CollectorRegistry();
+    collector.register(registry);
+    resource = new JerseyMetricsResource(new JerseyStatisticsCollector(statistics),
+        new CollectorRegistry());
+  }
+
+  @Benchmark
+  public List<MetricFamilySamples> collect() {
+    addRequests();
+    return collector.collect();
+  }
+
+  @Benchmark
+  public void collectAndFormat() throws IOException {
+    addRequests();
+    TextFormat.write004(discardingWriter, registry.metricFamilySamples());
+  }
+
+  @Benchmark
+  public void streamingResource() throws IOException {
+    addRequests();
+    ((StreamingOutput) resource.metrics(null, null).getEntity()).write(discardingStream);
+  }
+
+  private void addRequests() {
+    if (activeMethods) {
+      statistics.addRequests(1L);
+    }
+  }
+
+  private static final class DiscardingWriter extends Writer {
+
+    @Override
+    public void write(int c) {
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static final class DiscardingOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package prometheus.exporter.jmh;
+
+import io.prometheus.client.CollectorRegistry;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import prometheus.exporter.JerseyRequestDurationListener;
+import prometheus.exporter.JerseyRequestPhaseListener;
+
+/**
+ * Overhead of the request listeners on an in-memory Jersey request. The difference between the
+ * {@code none} listener and the others is the per-request cost of the instrumentation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RequestListenerBenchmark {
+
+  @Param({"none", "duration", "phases"})
+  public String listener;
+
+  private ApplicationHandler application;
+  private final URI baseUri = URI.create("http://localhost/");
+  private final URI requestUri = URI.create("http://localhost/users/42");
+
+  @Setup
+  public void setUp() {
+    ResourceConfig resourceConfig = new ResourceConfig(UserResource.class);
+    if ("duration".equals(listener)) {
+      resourceConfig.register(new JerseyRequestDurationListener(new CollectorRegistry(),
+          0.001, 0.01, 0.1, 1));
+    } else if ("phases".equals(listener)) {
+      resourceConfig.register(new JerseyRequestPhaseListener(new CollectorRegistry(),
+          0.001, 0.01, 0.1, 1));
+    }
+    application = new ApplicationHandler(resourceConfig);
+  }
+
+  @Benchmark
+  public ContainerResponse request() throws InterruptedException, ExecutionException {
+    return application.apply(new ContainerRequest(baseUri, requestUri, "GET", null,
+        new MapPropertiesDelegate())).get();
+  }
+
+  @Path("users/{id}")
+  public static class UserResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      return id;
+    }
+  }
+}
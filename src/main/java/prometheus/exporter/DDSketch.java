@@ -0,0 +1,288 @@
+package prometheus.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Mergeable quantile sketch with relative-error guarantees, after DDSketch (Masson et al.).
+ * <p>
+ * Values are counted in logarithmically sized buckets, so that every quantile is returned with a
+ * relative error of at most the configured accuracy. The buckets cover a fixed value range;
+ * values outside of it are counted in the first or last bucket. Bucket counts are kept in a
+ * preallocated primitive array and updated with atomic increments, so recording is lock-free and
+ * does not allocate. With the default parameters a sketch has 461 buckets, whose counts take
+ * 3688 bytes.
+ * </p>
+ * <p>
+ * Sketches with the same parameters can be merged without loss of accuracy, which makes them
+ * suitable for computing percentiles across instances: {@link #toByteArray()} serializes only the
+ * non-empty buckets and {@link #fromByteArray(byte[])} restores them on the aggregating side.
+ * Since the parameters determine the number of buckets, a sketch may have at most 65536 of them,
+ * so that a malformed or hostile serialized sketch cannot make the aggregator allocate an
+ * arbitrarily large array.
+ * </p>
+ */
+public final class DDSketch {
+
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.02;
+  public static final double DEFAULT_MIN_VALUE = 1e-5;
+  public static final double DEFAULT_MAX_VALUE = 1e3;
+  static final int MAX_BUCKETS = 1 << 16;
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private final double relativeAccuracy;
+  private final double minValue;
+  private final double maxValue;
+  private final double logGamma;
+  private final int minIndex;
+  private final AtomicLongArray counts;
+  private final DoubleAdder sum = new DoubleAdder();
+
+  /**
+   * Creates a sketch with the default parameters: 2% relative accuracy for values between 10
+   * microseconds and 1000 seconds.
+   */
+  public DDSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE);
+  }
+
+  /**
+   * Creates a sketch with the given parameters.
+   *
+   * @param relativeAccuracy Maximum relative error of the quantiles, between 0 and 1
+   * @param minValue Smallest value counted accurately, must be positive
+   * @param maxValue Largest value counted accurately
+   * @throws IllegalArgumentException if the parameters are out of range, or would need more than
+   * 65536 buckets
+   */
+  public DDSketch(double relativeAccuracy, double minValue, double maxValue) {
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+    }
+    if (!(minValue > 0 && minValue < maxValue)) {
+      throw new IllegalArgumentException("Value range must be positive and non-empty");
+    }
+    double logGamma = Math.log((1 + relativeAccuracy) / (1 - relativeAccuracy));
+    double buckets = Math.ceil(Math.log(maxValue) / logGamma)
+        - Math.ceil(Math.log(minValue) / logGamma) + 1;
+    if (!(buckets <= MAX_BUCKETS)) {
+      throw new IllegalArgumentException("Relative accuracy and value range would need more than "
+          + MAX_BUCKETS + " buckets");
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.minValue = minValue;
+    this.maxValue = maxValue;
+    this.logGamma = logGamma;
+    this.minIndex = rawIndex(minValue);
+    this.counts = new AtomicLongArray(rawIndex(maxValue) - minIndex + 1);
+  }
+
+  /**
+   * Counts the given value.
+   */
+  public void record(double value) {
+    recordInBucket(index(value), value);
+  }
+
+  /**
+   * Counts the given value in the given bucket, which must be its {@link #index(double)}.
+   */
+  void recordInBucket(int bucket, double value) {
+    counts.incrementAndGet(bucket);
+    sum.add(value);
+  }
+
+  /**
+   * Adds the counts of the given sketch, which must have been created with the same parameters.
+   */
+  public void merge(DDSketch other) {
+    checkCompatible(other);
+    for (int i = 0; i < counts.length(); i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    sum.add(other.sum.sum());
+  }
+
+  /**
+   * Returns the number of recorded values.
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the sum of the recorded values.
+   */
+  public double getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the value at the given quantile, or {@code NaN} if the sketch is empty.
+   *
+   * @param quantile Quantile between 0 and 1
+   */
+  public double getQuantile(double quantile) {
+    return getQuantiles(new double[]{quantile})[0];
+  }
+
+  /**
+   * Returns the values at the given quantiles, computed from a single pass over the buckets.
+   *
+   * @param quantiles Quantiles between 0 and 1, in ascending order
+   */
+  public double[] getQuantiles(double[] quantiles) {
+    return getQuantiles(quantiles, counts::get);
+  }
+
+  /**
+   * Returns the values at the given quantiles of the given bucket counts, which have been counted
+   * with the parameters of this sketch, e.g. in a window of recent values. Nothing is copied, so
+   * the counts should not change much while this is running.
+   *
+   * @param quantiles Quantiles between 0 and 1, in ascending order
+   * @param bucketCounts Count of every bucket from 0 to {@link #bucketCount()}
+   */
+  double[] getQuantiles(double[] quantiles, IntToLongFunction bucketCounts) {
+    int buckets = counts.length();
+    long count = 0;
+    for (int i = 0; i < buckets; i++) {
+      count += bucketCounts.applyAsLong(i);
+    }
+    double[] values = new double[quantiles.length];
+    int bucket = 0;
+    long cumulative = bucketCounts.applyAsLong(0);
+    for (int q = 0; q < quantiles.length; q++) {
+      if (count == 0) {
+        values[q] = Double.NaN;
+        continue;
+      }
+      double rank = quantiles[q] * (count - 1);
+      while (cumulative <= rank && bucket < buckets - 1) {
+        cumulative += bucketCounts.applyAsLong(++bucket);
+      }
+      values[q] = value(bucket);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the number of buckets, which is determined by the parameters.
+   */
+  int bucketCount() {
+    return counts.length();
+  }
+
+  /**
+   * Serializes the parameters, the sum and the non-empty buckets of this sketch.
+   */
+  public byte[] toByteArray() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    ByteBuffer header = ByteBuffer.allocate(1 + 4 * 8);
+    header.put(FORMAT_VERSION).putDouble(relativeAccuracy).putDouble(minValue)
+        .putDouble(maxValue).putDouble(sum.sum());
+    out.write(header.array(), 0, header.position());
+    int previous = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      long count = counts.get(i);
+      if (count != 0) {
+        writeVarLong(out, i - previous);
+        writeVarLong(out, count);
+        previous = i;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Restores a sketch serialized with {@link #toByteArray()}.
+   *
+   * @throws IllegalArgumentException if the bytes are not a serialized sketch, or its parameters
+   * would need more than 65536 buckets
+   */
+  public static DDSketch fromByteArray(byte[] bytes) {
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    try {
+      if (in.get() != FORMAT_VERSION) {
+        throw new IllegalArgumentException("Unsupported sketch format");
+      }
+      DDSketch sketch = new DDSketch(in.getDouble(), in.getDouble(), in.getDouble());
+      sketch.sum.add(in.getDouble());
+      int index = 0;
+      while (in.hasRemaining()) {
+        index += (int) readVarLong(in);
+        sketch.counts.addAndGet(index, readVarLong(in));
+      }
+      return sketch;
+    } catch (RuntimeException e) {
+      if (e instanceof IllegalArgumentException) {
+        throw e;
+      }
+      throw new IllegalArgumentException("Malformed sketch", e);
+    }
+  }
+
+  private void checkCompatible(DDSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy || other.minValue != minValue
+        || other.maxValue != maxValue) {
+      throw new IllegalArgumentException("Cannot merge sketches with different parameters");
+    }
+  }
+
+  /**
+   * Returns the bucket the given value is counted in.
+   */
+  int index(double value) {
+    if (!(value > minValue)) {
+      return 0;
+    }
+    if (value >= maxValue) {
+      return counts.length() - 1;
+    }
+    return Math.min(rawIndex(value) - minIndex, counts.length() - 1);
+  }
+
+  private int rawIndex(double value) {
+    return (int) Math.ceil(Math.log(value) / logGamma);
+  }
+
+  /**
+   * Returns the value of the given bucket, which is within the relative accuracy of every value
+   * counted in it.
+   */
+  private double value(int bucket) {
+    double gamma = Math.exp(logGamma);
+    return 2 * Math.exp((bucket + minIndex) * logGamma) / (gamma + 1);
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed variable-length number");
+  }
+}
@@ -0,0 +1,224 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Writes metric families in the Prometheus text exposition format (version 0.0.4) or in the
+ * OpenMetrics text format directly to an output stream.
+ * <p>
+ * Text is encoded into a fixed-size byte buffer that is flushed whenever it fills up, so the peak
+ * memory of writing a scrape does not depend on its size. Instances are not thread-safe but may be
+ * reused for consecutive scrapes via {@link #reset(OutputStream)}. Write failures are reported as
+ * {@link UncheckedIOException} so that the writer can be used from visitor callbacks.
+ * </p>
+ */
+final class ExpositionWriter {
+
+  static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+  static final String CONTENT_TYPE_OPENMETRICS =
+      "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final char[] DIGITS = "0123456789".toCharArray();
+
+  private final boolean openMetrics;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final char[] digits = new char[20];
+  private int position;
+  private OutputStream out;
+
+  /**
+   * Sample names that get the {@code _total} suffix appended in OpenMetrics format, i.e. the
+   * name of a counter family whose name does not already end with it.
+   */
+  private String counterWithoutSuffix;
+
+  ExpositionWriter(boolean openMetrics) {
+    this.openMetrics = openMetrics;
+  }
+
+  String getContentType() {
+    return openMetrics ? CONTENT_TYPE_OPENMETRICS : CONTENT_TYPE_004;
+  }
+
+  /**
+   * Starts writing a new scrape to the given stream.
+   */
+  ExpositionWriter reset(OutputStream out) {
+    this.out = out;
+    this.position = 0;
+    this.counterWithoutSuffix = null;
+    return this;
+  }
+
+  void writeFamily(MetricFamilySamples family) {
+    startFamily(family.name, family.type, family.help);
+    for (MetricFamilySamples.Sample sample : family.samples) {
+      writeSample(sample.name, sample.labelNames, sample.labelValues, sample.value);
+    }
+  }
+
+  void startFamily(String name, Type type, String help) {
+    String familyName = name;
+    counterWithoutSuffix = null;
+    if (openMetrics && type == Type.COUNTER) {
+      if (name.endsWith("_total")) {
+        familyName = name.substring(0, name.length() - "_total".length());
+      } else {
+        counterWithoutSuffix = name;
+      }
+    }
+    ascii("# HELP ");
+    ascii(familyName);
+    write(' ');
+    // OpenMetrics escapes double quotes in help texts as well, the 0.0.4 format does not.
+    escaped(help, openMetrics);
+    ascii("\n# TYPE ");
+    ascii(familyName);
+    write(' ');
+    ascii(typeName(type));
+    write('\n');
+  }
+
+  void writeSample(String name, List<String> labelNames, List<String> labelValues,
+      double value) {
+    ascii(name);
+    if (counterWithoutSuffix != null && name.equals(counterWithoutSuffix)) {
+      ascii("_total");
+    }
+    int labels = labelNames.size();
+    if (labels > 0) {
+      write('{');
+      for (int i = 0; i < labels; i++) {
+        if (i > 0) {
+          write(',');
+        }
+        ascii(labelNames.get(i));
+        ascii("=\"");
+        escaped(labelValues.get(i), true);
+        write('"');
+      }
+      if (!openMetrics) {
+        // Trailing comma as written by the client library's TextFormat.
+        write(',');
+      }
+      write('}');
+    }
+    write(' ');
+    number(value);
+    write('\n');
+  }
+
+  /**
+   * Writes the end of the scrape and flushes the buffer, but does not close the stream.
+   */
+  void finish() {
+    if (openMetrics) {
+      ascii("# EOF\n");
+    }
+    flush();
+  }
+
+  private String typeName(Type type) {
+    switch (type) {
+      case GAUGE:
+        return "gauge";
+      case COUNTER:
+        return "counter";
+      case SUMMARY:
+        return "summary";
+      case HISTOGRAM:
+        return "histogram";
+      default:
+        return openMetrics ? "unknown" : "untyped";
+    }
+  }
+
+  /**
+   * Formats the value the same way as {@code Collector.doubleToGoString}, without allocating for
+   * small non-negative integers such as counts.
+   */
+  private void number(double value) {
+    if (value < 1e7 && Double.doubleToRawLongBits(value) >= 0 && value == (long) value) {
+      long remaining = (long) value;
+      int length = 0;
+      do {
+        digits[length++] = DIGITS[(int) (remaining % 10)];
+        remaining /= 10;
+      } while (remaining > 0);
+      while (length > 0) {
+        write(digits[--length]);
+      }
+      ascii(".0");
+    } else if (value == Double.POSITIVE_INFINITY) {
+      ascii("+Inf");
+    } else if (value == Double.NEGATIVE_INFINITY) {
+      ascii("-Inf");
+    } else if (Double.isNaN(value)) {
+      ascii("NaN");
+    } else {
+      ascii(Double.toString(value));
+    }
+  }
+
+  private void ascii(String s) {
+    for (int i = 0, length = s.length(); i < length; i++) {
+      write(s.charAt(i));
+    }
+  }
+
+  private void escaped(String s, boolean escapeQuotes) {
+    for (int i = 0, length = s.length(); i < length; i++) {
+      char c = s.charAt(i);
+      if (c == '\\') {
+        write('\\');
+        write('\\');
+      } else if (c == '\n') {
+        write('\\');
+        write('n');
+      } else if (c == '"' && escapeQuotes) {
+        write('\\');
+        write('"');
+      } else if (c < 0x80) {
+        write(c);
+      } else if (c < 0x800) {
+        write(0xc0 | (c >> 6));
+        write(0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        write(0xf0 | (codePoint >> 18));
+        write(0x80 | ((codePoint >> 12) & 0x3f));
+        write(0x80 | ((codePoint >> 6) & 0x3f));
+        write(0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        write('?');
+      } else {
+        write(0xe0 | (c >> 12));
+        write(0x80 | ((c >> 6) & 0x3f));
+        write(0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void write(int b) {
+    if (position == buffer.length) {
+      flush();
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  private void flush() {
+    try {
+      out.write(buffer, 0, position);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    position = 0;
+  }
+}
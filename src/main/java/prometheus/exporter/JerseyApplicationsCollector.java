@@ -0,0 +1,392 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.glassfish.jersey.server.monitoring.MonitoringStatistics;
+
+/**
+ * Collect metrics from several Jersey applications deployed into the same server, labeled by
+ * application.
+ * <p>
+ * Registering a {@link JerseyStatisticsCollector} per application would export the same metric
+ * names several times. This collector exports each family once, with the samples of every
+ * application and an additional {@code application} label:
+ * <pre>
+ * JerseyApplicationsCollector collector = new JerseyApplicationsCollector().register();
+ * collector.add("orders", ordersMonitoringStatistics);
+ * collector.add("billing", billingMonitoringStatistics);
+ * </pre>
+ * Applications are collected concurrently on a fixed number of threads, so that a scrape takes
+ * about as long as the slowest application rather than the sum of all of them, provided there are
+ * enough threads. Each application has to be collected within the same time budget, counted from
+ * the moment its collection starts, so that time spent waiting for a thread does not count against
+ * it; applications that take longer are left out of that scrape and a collection still running is
+ * picked up by the next one, with a budget counted from the start of that scrape, instead of being
+ * started again. An application still waiting for a thread is left out as well once every thread
+ * is busy with a collection past its budget. With more applications than threads a scrape may thus
+ * take several budgets, which together should stay well below the scrape timeout of Prometheus,
+ * so that the applications that were collected in time still reach it.
+ * {@code jersey_application_scrape_success} and {@code jersey_application_scrape_duration_seconds}
+ * report the outcome per application.
+ * </p>
+ * <p>
+ * Label values are shared between applications, so that e.g. the uri {@code /health} is held
+ * once no matter how many applications serve it. Up to 10000 distinct values are shared; past
+ * that, sharing starts over with the values of new series. Values of removed applications are kept
+ * until then, so that the remaining applications keep sharing theirs.
+ * </p>
+ */
+public class JerseyApplicationsCollector extends Collector implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(
+      JerseyApplicationsCollector.class.getName());
+  private static final String APPLICATION_LABEL = "application";
+  private static final List<String> APPLICATION_LABELS = Collections
+      .singletonList(APPLICATION_LABEL);
+  private static final int MAX_SHARED_LABEL_VALUES = 10000;
+  private static final long QUEUED_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final ExecutorService executor;
+  private final int threads;
+  private final long budgetNanos;
+  private final ConcurrentMap<String, Source> sources = new ConcurrentSkipListMap<>();
+  private final Set<Source> collecting = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Label names and values shared by all applications.
+   */
+  private final ConcurrentMap<List<String>, List<String>> sharedLabelNames =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> sharedLabelValues = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a collector with one thread per available processor, up to 4, and a time budget of
+   * 5 seconds, half the default scrape timeout of Prometheus.
+   */
+  public JerseyApplicationsCollector() {
+    this(Math.min(4, Runtime.getRuntime().availableProcessors()), 5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates a collector collecting applications on the given number of threads.
+   *
+   * @param threads The number of applications to collect concurrently
+   * @param budget The time each application may take to be collected, counted from the start of
+   * its collection
+   * @param unit The unit of the budget
+   */
+  public JerseyApplicationsCollector(int threads, long budget, TimeUnit unit) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Number of threads must be positive");
+    }
+    if (budget <= 0 || unit == null) {
+      throw new IllegalArgumentException("Time budget must be positive");
+    }
+    AtomicInteger threadIndex = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable,
+          "jersey-exporter-applications-" + threadIndex.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.threads = threads;
+    this.budgetNanos = unit.toNanos(budget);
+  }
+
+  /**
+   * Adds an application exporting uri statistics of all resource methods.
+   *
+   * @param application The value of the {@code application} label
+   * @param monitoringStatistics The Jersey monitoring statistics provider of the application
+   */
+  public JerseyApplicationsCollector add(String application,
+      MonitoringStatistics monitoringStatistics) {
+    return add(application, monitoringStatistics, 0);
+  }
+
+  /**
+   * Adds an application exporting uri statistics for at most the given number of (uri, resource
+   * method) pairs, see {@link JerseyStatisticsCollector#JerseyStatisticsCollector(
+   * MonitoringStatistics, int)}.
+   *
+   * @param application The value of the {@code application} label
+   * @param monitoringStatistics The Jersey monitoring statistics provider of the application
+   * @param maxSeries The maximum number of (uri, resource method) pairs to export, or 0 for no
+   * limit
+   */
+  public JerseyApplicationsCollector add(String application,
+      MonitoringStatistics monitoringStatistics, int maxSeries) {
+    if (application == null) {
+      throw new IllegalArgumentException("Application cannot be null");
+    }
+    Source source = new Source(sharedLabelValue(application),
+        new JerseyStatisticsCollector(monitoringStatistics, maxSeries));
+    if (sources.putIfAbsent(application, source) != null) {
+      throw new IllegalArgumentException("Application " + application + " is already added");
+    }
+    return this;
+  }
+
+  /**
+   * Removes an application, e.g. when it is undeployed.
+   */
+  public void remove(String application) {
+    sources.remove(application);
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    long scrapeNanos = System.nanoTime();
+    List<Source> current = new ArrayList<>(sources.values());
+    List<Future<List<MetricFamilySamples>>> pending = new ArrayList<>(current.size());
+    for (Source source : current) {
+      pending.add(source.submit(executor));
+    }
+
+    Map<String, MetricFamilySamples> families = new LinkedHashMap<>();
+    List<MetricFamilySamples.Sample> success = new ArrayList<>(current.size());
+    List<MetricFamilySamples.Sample> duration = new ArrayList<>(current.size());
+    for (int i = 0; i < current.size(); i++) {
+      Source source = current.get(i);
+      List<MetricFamilySamples> metrics = await(source, pending.get(i), scrapeNanos);
+      if (metrics != null) {
+        source.merge(metrics, families);
+      }
+      success.add(new MetricFamilySamples.Sample("jersey_application_scrape_success",
+          APPLICATION_LABELS, source.applicationLabel, metrics != null ? 1 : 0));
+      if (source.lastDurationNanos >= 0) {
+        duration.add(new MetricFamilySamples.Sample("jersey_application_scrape_duration_seconds",
+            APPLICATION_LABELS, source.applicationLabel,
+            source.lastDurationNanos / NANOSECONDS_PER_SECOND));
+      }
+    }
+
+    List<MetricFamilySamples> metrics = new ArrayList<>(families.size() + 2);
+    metrics.addAll(families.values());
+    metrics.add(new MetricFamilySamples("jersey_application_scrape_success", Type.GAUGE,
+        "Whether the application was collected within the time budget", success));
+    metrics.add(new MetricFamilySamples("jersey_application_scrape_duration_seconds",
+        Type.GAUGE, "Duration of the last completed collection of the application", duration));
+    return metrics;
+  }
+
+  /**
+   * Waits for the collection of a source until its budget runs out. A collection still waiting for
+   * a thread is given up once every thread is busy with a collection past its budget, as it might
+   * then not start at all.
+   */
+  private List<MetricFamilySamples> await(Source source, Future<List<MetricFamilySamples>> future,
+      long scrapeNanos) {
+    while (true) {
+      long now = System.nanoTime();
+      if (future.isDone()) {
+        return source.await(future, 0L);
+      }
+      if (collecting.contains(source)) {
+        return source.await(future, deadline(source, scrapeNanos) - now);
+      }
+      // Until a thread frees up: wake up when the next collection within its budget runs out of
+      // it, or shortly when no collection is within its budget and a thread is about to be free.
+      long waitNanos = Long.MAX_VALUE;
+      int overBudget = 0;
+      for (Source other : collecting) {
+        long remaining = deadline(other, scrapeNanos) - now;
+        if (remaining <= 0) {
+          overBudget++;
+        } else {
+          waitNanos = Math.min(waitNanos, remaining);
+        }
+      }
+      if (overBudget >= threads) {
+        return null;
+      }
+      try {
+        future.get(waitNanos == Long.MAX_VALUE ? QUEUED_POLL_NANOS : waitNanos,
+            TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // Checked again above; failures are logged once the future is done.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Returns the end of the budget of a running collection, counted from its start or, for a
+   * collection started by an earlier scrape, from the start of this one.
+   */
+  private long deadline(Source source, long scrapeNanos) {
+    long startNanos = source.startNanos;
+    return (startNanos - scrapeNanos > 0 ? startNanos : scrapeNanos) + budgetNanos;
+  }
+
+  /**
+   * Stops the collection threads.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private String sharedLabelValue(String value) {
+    String shared = sharedLabelValues.get(value);
+    if (shared != null) {
+      return shared;
+    }
+    if (sharedLabelValues.size() >= MAX_SHARED_LABEL_VALUES) {
+      // Label lists already built keep their values; only new series share the new ones.
+      sharedLabelValues.clear();
+    }
+    shared = sharedLabelValues.putIfAbsent(value, value);
+    return shared != null ? shared : value;
+  }
+
+  private List<String> sharedLabelNames(List<String> labelNames) {
+    List<String> shared = sharedLabelNames.get(labelNames);
+    if (shared == null) {
+      shared = prepend(APPLICATION_LABEL, labelNames);
+      List<String> existing = sharedLabelNames.putIfAbsent(labelNames, shared);
+      if (existing != null) {
+        shared = existing;
+      }
+    }
+    return shared;
+  }
+
+  private static List<String> prepend(String first, List<String> rest) {
+    String[] values = new String[rest.size() + 1];
+    values[0] = first;
+    for (int i = 0; i < rest.size(); i++) {
+      values[i + 1] = rest.get(i);
+    }
+    return Collections.unmodifiableList(Arrays.asList(values));
+  }
+
+  /**
+   * An application with its own collector, and the label values with the {@code application}
+   * label prepended for the label values its collector returned in the latest scrape. The
+   * collector reuses its lists across scrapes, so they are looked up by identity; lists not seen
+   * in a scrape are dropped.
+   */
+  private final class Source {
+
+    private final List<String> applicationLabel;
+    private final JerseyStatisticsCollector collector;
+    private Future<List<MetricFamilySamples>> pending;
+    private volatile long startNanos;
+    private volatile long lastDurationNanos = -1L;
+    private Map<List<String>, List<String>> labels = new IdentityHashMap<>();
+    private Map<List<String>, List<String>> previousLabels = new IdentityHashMap<>();
+
+    Source(String application, JerseyStatisticsCollector collector) {
+      this.applicationLabel = Collections.singletonList(application);
+      this.collector = collector;
+    }
+
+    /**
+     * Starts collecting the application, unless a previous collection is still running.
+     */
+    synchronized Future<List<MetricFamilySamples>> submit(ExecutorService executor) {
+      if (pending == null) {
+        pending = executor.submit(() -> {
+          long start = System.nanoTime();
+          startNanos = start;
+          collecting.add(this);
+          try {
+            List<MetricFamilySamples> metrics = collector.collect();
+            lastDurationNanos = System.nanoTime() - start;
+            return metrics;
+          } finally {
+            collecting.remove(this);
+          }
+        });
+      }
+      return pending;
+    }
+
+    /**
+     * Returns the collected metrics, or null if the collection failed or did not complete in
+     * time.
+     */
+    List<MetricFamilySamples> await(Future<List<MetricFamilySamples>> future, long timeoutNanos) {
+      try {
+        List<MetricFamilySamples> metrics = future.get(Math.max(0L, timeoutNanos),
+            TimeUnit.NANOSECONDS);
+        done(future);
+        return metrics;
+      } catch (TimeoutException e) {
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        done(future);
+        LOGGER.log(Level.WARNING, "Could not collect application " + applicationLabel.get(0),
+            e.getCause());
+        return null;
+      }
+    }
+
+    private synchronized void done(Future<List<MetricFamilySamples>> future) {
+      if (pending == future) {
+        pending = null;
+      }
+    }
+
+    synchronized void merge(List<MetricFamilySamples> metrics,
+        Map<String, MetricFamilySamples> families) {
+      for (MetricFamilySamples family : metrics) {
+        MetricFamilySamples merged = families.get(family.name);
+        if (merged == null) {
+          merged = new MetricFamilySamples(family.name, family.type, family.help,
+              new ArrayList<MetricFamilySamples.Sample>(family.samples.size()));
+          families.put(family.name, merged);
+        }
+        for (MetricFamilySamples.Sample sample : family.samples) {
+          merged.samples.add(new MetricFamilySamples.Sample(sample.name,
+              sharedLabelNames(sample.labelNames), labelValues(sample.labelValues), sample.value));
+        }
+      }
+      previousLabels = labels;
+      labels = new IdentityHashMap<>(previousLabels.size());
+    }
+
+    private List<String> labelValues(List<String> labelValues) {
+      List<String> prefixed = labels.get(labelValues);
+      if (prefixed == null) {
+        prefixed = previousLabels.get(labelValues);
+        if (prefixed == null) {
+          String[] values = new String[labelValues.size() + 1];
+          values[0] = applicationLabel.get(0);
+          for (int i = 0; i < labelValues.size(); i++) {
+            values[i + 1] = sharedLabelValue(labelValues.get(i));
+          }
+          prefixed = Collections.unmodifiableList(Arrays.asList(values));
+        }
+        labels.put(labelValues, prefixed);
+      }
+      return prefixed;
+    }
+  }
+}
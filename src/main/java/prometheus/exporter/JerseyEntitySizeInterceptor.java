@@ -0,0 +1,335 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+
+/**
+ * Measures request and response entity sizes per resource method and media type, and the time
+ * spent serializing response entities per {@link MessageBodyWriter}.
+ * <p>
+ * Usage example:
+ * <pre>
+ * resourceConfig.register(new JerseyEntitySizeInterceptor());
+ * </pre>
+ * This exports the {@code jersey_request_entity_bytes} and {@code jersey_response_entity_bytes}
+ * histograms labeled by URI template, HTTP method and media type, and the
+ * {@code jersey_entity_serialization_seconds} histogram labeled by writer class. Serialization
+ * time includes interceptors registered with a lower priority, such as compression.
+ * </p>
+ * <p>
+ * The media type label is one of the types the resource method declares in {@code @Consumes}
+ * (request entities) or {@code @Produces} (response entities), without parameters. Entities of
+ * any other type, including all entities of methods that do not declare specific types, are
+ * labeled {@code other}, since the request media type is chosen by the client.
+ * </p>
+ * <p>
+ * The writer class is looked up once per entity class and media type and cached, ignoring the
+ * generic type and annotations of the entity, so it is an approximation per class: a writer that
+ * only handles some generic types or annotated entities of a class may be reported for all of
+ * them.
+ * </p>
+ * <p>
+ * Entity streams are wrapped in counting streams that pass every write and read straight through
+ * to the underlying stream, without copying or allocating. Request entities are counted up to the
+ * point the reader returns, so entities read lazily, e.g. as an {@code InputStream}, are not
+ * counted completely. Entities of requests that did not match a resource method are not recorded.
+ * </p>
+ */
+public class JerseyEntitySizeInterceptor implements ReaderInterceptor, WriterInterceptor {
+
+  static final double[] DEFAULT_BUCKETS = {64, 256, 1024, 4096, 16384, 65536, 262144, 1048576,
+      4194304, 16777216, 67108864};
+
+  static final String OTHER_MEDIA_TYPE = "other";
+  private static final int MAX_WRITER_MEDIA_TYPES = 16;
+
+  private final Histogram serializationDuration;
+  private final ResourceMethodChildren<MediaTypeChildren> requestSizes;
+  private final ResourceMethodChildren<MediaTypeChildren> responseSizes;
+  private final ConcurrentMap<Class<?>, WriterChildren> writers = new ConcurrentHashMap<>();
+
+  @Context
+  private ExtendedUriInfo uriInfo;
+
+  @Context
+  private Providers providers;
+
+  /**
+   * Creates an interceptor with the default size buckets, registered with the default registry.
+   */
+  public JerseyEntitySizeInterceptor() {
+    this(CollectorRegistry.defaultRegistry, DEFAULT_BUCKETS);
+  }
+
+  /**
+   * Creates an interceptor with the given size buckets, registered with the given registry.
+   *
+   * @param registry The registry to register the histograms with
+   * @param buckets Upper bounds of the entity size buckets, in bytes
+   */
+  public JerseyEntitySizeInterceptor(CollectorRegistry registry, double... buckets) {
+    if (registry == null) {
+      throw new IllegalArgumentException("Collector registry cannot be null");
+    }
+    Histogram requestSize = Histogram.build()
+        .name("jersey_request_entity_bytes")
+        .help("Size of request entities")
+        .labelNames("uri", "method", "media_type")
+        .buckets(buckets)
+        .register(registry);
+    Histogram responseSize = Histogram.build()
+        .name("jersey_response_entity_bytes")
+        .help("Size of response entities")
+        .labelNames("uri", "method", "media_type")
+        .buckets(buckets)
+        .register(registry);
+    this.serializationDuration = Histogram.build()
+        .name("jersey_entity_serialization_seconds")
+        .help("Time spent writing response entities")
+        .labelNames("writer")
+        .register(registry);
+    this.requestSizes = ResourceMethodChildren.forResourceMethods(
+        (uri, resourceMethod) -> new MediaTypeChildren(requestSize, uri,
+            resourceMethod.getHttpMethod(), resourceMethod.getConsumedTypes()));
+    this.responseSizes = ResourceMethodChildren.forResourceMethods(
+        (uri, resourceMethod) -> new MediaTypeChildren(responseSize, uri,
+            resourceMethod.getHttpMethod(), resourceMethod.getProducedTypes()));
+  }
+
+  @Override
+  public Object aroundReadFrom(ReaderInterceptorContext context)
+      throws IOException, WebApplicationException {
+    MediaTypeChildren children = requestSizes.get(uriInfo);
+    if (children == null) {
+      return context.proceed();
+    }
+    InputStream original = context.getInputStream();
+    CountingInputStream counting = new CountingInputStream(original);
+    context.setInputStream(counting);
+    try {
+      return context.proceed();
+    } finally {
+      context.setInputStream(original);
+      children.get(context.getMediaType()).observe(counting.count);
+    }
+  }
+
+  @Override
+  public void aroundWriteTo(WriterInterceptorContext context)
+      throws IOException, WebApplicationException {
+    MediaTypeChildren children = responseSizes.get(uriInfo);
+    OutputStream original = context.getOutputStream();
+    CountingOutputStream counting = children != null ? new CountingOutputStream(original) : null;
+    if (counting != null) {
+      context.setOutputStream(counting);
+    }
+    long start = System.nanoTime();
+    try {
+      context.proceed();
+    } finally {
+      serializationDuration(context).observe(
+          (System.nanoTime() - start) / Collector.NANOSECONDS_PER_SECOND);
+      if (counting != null) {
+        context.setOutputStream(original);
+        children.get(context.getMediaType()).observe(counting.count);
+      }
+    }
+  }
+
+  private Histogram.Child serializationDuration(WriterInterceptorContext context) {
+    WriterChildren byMediaType = writers.get(context.getType());
+    if (byMediaType == null) {
+      byMediaType = new WriterChildren();
+      WriterChildren existing = writers.putIfAbsent(context.getType(), byMediaType);
+      if (existing != null) {
+        byMediaType = existing;
+      }
+    }
+    Histogram.Child child = byMediaType.get(context.getMediaType());
+    if (child == null) {
+      MessageBodyWriter<?> writer = providers.getMessageBodyWriter(context.getType(),
+          context.getGenericType(), context.getAnnotations(), context.getMediaType());
+      child = serializationDuration.labels(writer != null ? writer.getClass().getName() : "");
+      byMediaType.add(withoutParameters(context.getMediaType()), child);
+    }
+    return child;
+  }
+
+  private static MediaType withoutParameters(MediaType mediaType) {
+    if (mediaType == null) {
+      return MediaType.WILDCARD_TYPE;
+    }
+    return mediaType.getParameters().isEmpty() ? mediaType
+        : new MediaType(mediaType.getType(), mediaType.getSubtype());
+  }
+
+  /**
+   * Serialization duration children of a single entity class, one per media type its writer has
+   * been looked up for. Media types are compared by type and subtype only, so that looking up a
+   * type with parameters, such as a charset, does not allocate.
+   */
+  private static final class WriterChildren {
+
+    private volatile WriterChild[] children = new WriterChild[0];
+
+    Histogram.Child get(MediaType mediaType) {
+      String type = mediaType != null ? mediaType.getType() : MediaType.MEDIA_TYPE_WILDCARD;
+      String subtype = mediaType != null ? mediaType.getSubtype() : MediaType.MEDIA_TYPE_WILDCARD;
+      for (WriterChild child : children) {
+        if (child.mediaType.getType().equalsIgnoreCase(type)
+            && child.mediaType.getSubtype().equalsIgnoreCase(subtype)) {
+          return child.child;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Caches the child for the given media type without parameters, unless there are too many
+     * media types already: the writer is then still looked up for further media types, but not
+     * cached, so that clients cannot grow the cache.
+     */
+    synchronized void add(MediaType mediaType, Histogram.Child child) {
+      WriterChild[] current = children;
+      if (current.length >= MAX_WRITER_MEDIA_TYPES || get(mediaType) != null) {
+        return;
+      }
+      WriterChild[] added = Arrays.copyOf(current, current.length + 1);
+      added[current.length] = new WriterChild(mediaType, child);
+      children = added;
+    }
+  }
+
+  private static final class WriterChild {
+
+    private final MediaType mediaType;
+    private final Histogram.Child child;
+
+    WriterChild(MediaType mediaType, Histogram.Child child) {
+      this.mediaType = mediaType;
+      this.child = child;
+    }
+  }
+
+  /**
+   * Histogram children of a single resource method, one per declared media type and one for all
+   * other media types. Declared types are few, so they are searched linearly.
+   */
+  private static final class MediaTypeChildren {
+
+    private final MediaType[] mediaTypes;
+    private final Histogram.Child[] children;
+    private final Histogram.Child other;
+
+    MediaTypeChildren(Histogram histogram, String uri, String httpMethod,
+        List<MediaType> declaredTypes) {
+      List<MediaType> mediaTypes = new ArrayList<>(declaredTypes.size());
+      for (MediaType declaredType : declaredTypes) {
+        MediaType mediaType = withoutParameters(declaredType);
+        if (!mediaType.isWildcardType() && !mediaTypes.contains(mediaType)) {
+          mediaTypes.add(mediaType);
+        }
+      }
+      this.mediaTypes = mediaTypes.toArray(new MediaType[0]);
+      this.children = new Histogram.Child[this.mediaTypes.length];
+      for (int i = 0; i < this.mediaTypes.length; i++) {
+        children[i] = histogram.labels(uri, httpMethod,
+            this.mediaTypes[i].getType() + "/" + this.mediaTypes[i].getSubtype());
+      }
+      this.other = histogram.labels(uri, httpMethod, OTHER_MEDIA_TYPE);
+    }
+
+    Histogram.Child get(MediaType mediaType) {
+      if (mediaType == null) {
+        return other;
+      }
+      for (int i = 0; i < mediaTypes.length; i++) {
+        if (mediaTypes[i].isCompatible(mediaType)) {
+          return children[i];
+        }
+      }
+      return other;
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Records the cost of requests that fail with an exception: their duration into a
+ * {@code jersey_failed_request_duration_seconds} histogram and the time spent in the exception
+ * mapper into {@code jersey_exception_mapping_duration_seconds}, both labeled by exception class
+ * and mapper class ({@code none} if Jersey handled the exception without a mapper, e.g. a
+ * {@code WebApplicationException} with a response).
+ * <p>
+ * The same instance has to be registered both with the application and with the collector
+ * registry:
+ * <pre>
+ * JerseyExceptionListener exceptions = new JerseyExceptionListener().register();
+ * resourceConfig.register(exceptions);
+ * </pre>
+ * To find the code that throws, the stack trace of a limited number of exceptions per second is
+ * inspected and its first frame outside of the JDK and Jersey counted in a bounded heavy-hitters
+ * table together with the exception class and the matched resource method. The busiest call
+ * sites are exported as {@code jersey_exception_call_site_samples}, and the number of inspected
+ * exceptions as {@code jersey_exception_samples_total}. Only sampled exceptions pay for reading
+ * the stack trace.
+ * </p>
+ */
+public class JerseyExceptionListener extends Collector implements ApplicationEventListener {
+
+  static final double DEFAULT_SAMPLES_PER_SECOND = 10;
+  static final int DEFAULT_CALL_SITES = 20;
+
+  private static final String NO_MAPPER = "none";
+  private static final String MAPPABLE_EXCEPTION =
+      "org.glassfish.jersey.server.internal.process.MappableException";
+  private static final String[] FRAMEWORK_PACKAGES = {"java.", "javax.", "sun.", "org.glassfish."};
+  private static final List<String> NO_LABELS = Collections.emptyList();
+  private static final List<String> CALL_SITE_LABELS = Collections
+      .unmodifiableList(Arrays.asList("exception", "call_site", "uri", "method"));
+
+  private final Histogram failedDuration;
+  private final Histogram mappingDuration;
+  private final ConcurrentMap<Class<?>, ConcurrentMap<Class<?>, ExceptionChildren>> children =
+      new ConcurrentHashMap<>();
+
+  private final long sampleIntervalNanos;
+  private final LongSupplier sampleClock;
+  private final AtomicLong nextSampleNanos;
+  private final AtomicLong sampledExceptions = new AtomicLong();
+  private final int callSiteCapacity;
+
+  /**
+   * Call sites by key, guarded by the table. Entries no longer held by the table are purged
+   * once there are twice as many as the table can hold.
+   */
+  private final SpaceSaving<CallSite> callSiteTable;
+  private final Map<String, CallSite> callSites = new HashMap<>();
+
+  /**
+   * Creates a listener with the default buckets, sampling the call sites of up to 10 exceptions
+   * per second and exporting the busiest 20.
+   */
+  public JerseyExceptionListener() {
+    this(DEFAULT_SAMPLES_PER_SECOND, DEFAULT_CALL_SITES,
+        JerseyRequestDurationListener.DEFAULT_BUCKETS);
+  }
+
+  /**
+   * Creates a listener with the given buckets for the duration of failed requests. Exception
+   * mapping, which usually takes well below a millisecond, is recorded with the buckets of
+   * {@link JerseyRequestPhaseListener}.
+   *
+   * @param samplesPerSecond Maximum number of exceptions per second whose call site is sampled,
+   * or 0 to sample none
+   * @param callSites Number of call sites to track
+   * @param buckets Upper bounds of the failed request duration buckets, in seconds
+   */
+  public JerseyExceptionListener(double samplesPerSecond, int callSites, double... buckets) {
+    this(samplesPerSecond, callSites, System::nanoTime, buckets);
+  }
+
+  /**
+   * Creates a listener that limits the rate of sampled call sites by the given clock.
+   */
+  JerseyExceptionListener(double samplesPerSecond, int callSites, LongSupplier sampleClock,
+      double... buckets) {
+    if (!(samplesPerSecond >= 0) || callSites <= 0) {
+      throw new IllegalArgumentException(
+          "Samples per second cannot be negative and number of call sites must be positive");
+    }
+    this.failedDuration = Histogram.build()
+        .name("jersey_failed_request_duration_seconds")
+        .help("Duration of requests that failed with an exception")
+        .labelNames("exception", "mapper")
+        .buckets(buckets)
+        .create();
+    this.mappingDuration = Histogram.build()
+        .name("jersey_exception_mapping_duration_seconds")
+        .help("Time spent in exception mappers")
+        .labelNames("exception", "mapper")
+        .buckets(JerseyRequestPhaseListener.DEFAULT_BUCKETS)
+        .create();
+    this.sampleIntervalNanos = samplesPerSecond > 0
+        ? (long) (NANOSECONDS_PER_SECOND / samplesPerSecond) : -1L;
+    this.sampleClock = sampleClock;
+    this.nextSampleNanos = new AtomicLong(sampleClock.getAsLong());
+    this.callSiteCapacity = callSites;
+    this.callSiteTable = new SpaceSaving<>(callSites);
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    return new RequestListener(System.nanoTime());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples> metrics = new ArrayList<>(4);
+    metrics.addAll(failedDuration.collect());
+    metrics.addAll(mappingDuration.collect());
+
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>(callSiteCapacity);
+    synchronized (callSiteTable) {
+      for (CallSite callSite : callSites.values()) {
+        if (callSiteTable.holds(callSite.slot, callSite)) {
+          samples.add(new MetricFamilySamples.Sample("jersey_exception_call_site_samples",
+              CALL_SITE_LABELS, callSite.labelValues, callSite.slot.getCount()));
+        }
+      }
+    }
+    metrics.add(new MetricFamilySamples("jersey_exception_call_site_samples", Type.GAUGE,
+        "Estimated number of sampled exceptions thrown at the call site", samples));
+    metrics.add(new MetricFamilySamples("jersey_exception_samples_total", Type.COUNTER,
+        "Number of exceptions whose call site was sampled", Collections.singletonList(
+        new MetricFamilySamples.Sample("jersey_exception_samples_total", NO_LABELS, NO_LABELS,
+            sampledExceptions.get()))));
+    return metrics;
+  }
+
+  /**
+   * Returns whether the call site of an exception thrown now may be sampled, admitting at most
+   * one exception per sample interval.
+   */
+  private boolean trySample() {
+    if (sampleIntervalNanos < 0) {
+      return false;
+    }
+    long now = sampleClock.getAsLong();
+    long next = nextSampleNanos.get();
+    return now - next >= 0 && nextSampleNanos.compareAndSet(next, now + sampleIntervalNanos);
+  }
+
+  private void sample(Throwable exception, ExtendedUriInfo uriInfo) {
+    StackTraceElement[] stackTrace = exception.getStackTrace();
+    if (stackTrace.length == 0) {
+      return;
+    }
+    sampledExceptions.incrementAndGet();
+    String exceptionClass = className(exception.getClass());
+    String frame = callSite(stackTrace).toString();
+    String uri = "";
+    String httpMethod = "";
+    if (uriInfo != null && uriInfo.getMatchedResourceMethod() != null) {
+      uri = ResourceMethodChildren.uriTemplate(uriInfo);
+      httpMethod = uriInfo.getMatchedResourceMethod().getHttpMethod();
+    }
+    String key = exceptionClass + '\n' + frame + '\n' + uri + '\n' + httpMethod;
+    synchronized (callSiteTable) {
+      CallSite callSite = callSites.get(key);
+      if (callSite == null) {
+        callSite = new CallSite(Collections.unmodifiableList(
+            Arrays.asList(exceptionClass, frame, uri, httpMethod)));
+        callSites.put(key, callSite);
+      }
+      callSite.slot = callSiteTable.offer(callSite, callSite.slot, 1L);
+      if (callSites.size() > 2 * callSiteCapacity) {
+        for (Iterator<CallSite> iterator = callSites.values().iterator(); iterator.hasNext(); ) {
+          CallSite tracked = iterator.next();
+          if (!callSiteTable.holds(tracked.slot, tracked)) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  private ExceptionChildren children(Class<?> exceptionClass, Class<?> mapperClass) {
+    ConcurrentMap<Class<?>, ExceptionChildren> mappers = children.get(exceptionClass);
+    if (mappers == null) {
+      mappers = new ConcurrentHashMap<>();
+      ConcurrentMap<Class<?>, ExceptionChildren> existing = children
+          .putIfAbsent(exceptionClass, mappers);
+      if (existing != null) {
+        mappers = existing;
+      }
+    }
+    Class<?> mapperKey = mapperClass != null ? mapperClass : Void.class;
+    ExceptionChildren exceptionChildren = mappers.get(mapperKey);
+    if (exceptionChildren == null) {
+      String exception = className(exceptionClass);
+      String mapper = mapperClass != null ? className(mapperClass) : NO_MAPPER;
+      exceptionChildren = new ExceptionChildren(failedDuration.labels(exception, mapper),
+          mappingDuration.labels(exception, mapper));
+      ExceptionChildren existing = mappers.putIfAbsent(mapperKey, exceptionChildren);
+      if (existing != null) {
+        exceptionChildren = existing;
+      }
+    }
+    return exceptionChildren;
+  }
+
+  /**
+   * Returns the exception thrown by the application rather than Jersey's wrapper around it. The
+   * wrapper is internal to Jersey, so it is recognized by name.
+   */
+  private static Throwable unwrap(Throwable exception) {
+    while (exception.getClass().getName().equals(MAPPABLE_EXCEPTION)
+        && exception.getCause() != null) {
+      exception = exception.getCause();
+    }
+    return exception;
+  }
+
+  /**
+   * Returns the first frame of application code, skipping frames of the JDK and Jersey such as
+   * those of {@code Integer.parseInt} or of a validator. Falls back to the top frame.
+   */
+  private static StackTraceElement callSite(StackTraceElement[] stackTrace) {
+    for (StackTraceElement frame : stackTrace) {
+      if (!isFrameworkClass(frame.getClassName())) {
+        return frame;
+      }
+    }
+    return stackTrace[0];
+  }
+
+  private static boolean isFrameworkClass(String className) {
+    for (String frameworkPackage : FRAMEWORK_PACKAGES) {
+      if (className.startsWith(frameworkPackage)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String className(Class<?> type) {
+    String className = type.getCanonicalName();
+    return className != null ? className : type.getName();
+  }
+
+  private static final class ExceptionChildren {
+
+    private final Histogram.Child failed;
+    private final Histogram.Child mapping;
+
+    ExceptionChildren(Histogram.Child failed, Histogram.Child mapping) {
+      this.failed = failed;
+      this.mapping = mapping;
+    }
+  }
+
+  private static final class CallSite {
+
+    private final List<String> labelValues;
+    private SpaceSaving.Slot<CallSite> slot;
+
+    CallSite(List<String> labelValues) {
+      this.labelValues = labelValues;
+    }
+  }
+
+  private final class RequestListener implements RequestEventListener {
+
+    private final long start;
+    private Class<?> exceptionClass;
+    private Class<?> mapperClass;
+    private long mapperFound;
+    private boolean mapping;
+
+    RequestListener(long start) {
+      this.start = start;
+    }
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      switch (event.getType()) {
+        case ON_EXCEPTION:
+          if (exceptionClass == null && event.getException() != null) {
+            Throwable exception = unwrap(event.getException());
+            exceptionClass = exception.getClass();
+            if (trySample()) {
+              sample(exception, event.getUriInfo());
+            }
+          }
+          break;
+        case EXCEPTION_MAPPER_FOUND:
+          if (event.getExceptionMapper() != null) {
+            mapperClass = event.getExceptionMapper().getClass();
+          }
+          mapperFound = System.nanoTime();
+          mapping = true;
+          break;
+        case EXCEPTION_MAPPING_FINISHED:
+          if (exceptionClass != null && mapping) {
+            children(exceptionClass, mapperClass).mapping
+                .observe((System.nanoTime() - mapperFound) / NANOSECONDS_PER_SECOND);
+            mapping = false;
+          }
+          break;
+        case FINISHED:
+          if (exceptionClass != null) {
+            children(exceptionClass, mapperClass).failed
+                .observe((System.nanoTime() - start) / NANOSECONDS_PER_SECOND);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
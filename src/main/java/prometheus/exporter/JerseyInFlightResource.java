@@ -0,0 +1,46 @@
+package prometheus.exporter;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * JAX-RS resource exposing the slowest requests being processed, as tracked by a
+ * {@link JerseyInFlightTracker}, as JSON at {@code /metrics/in-flight}.
+ * <p>
+ * See {@link JerseyInFlightTracker#writeSlowest(Writer)} for the format.
+ * </p>
+ */
+@Path("metrics/in-flight")
+public class JerseyInFlightResource {
+
+  private final JerseyInFlightTracker tracker;
+
+  /**
+   * Creates a resource exposing the slowest requests of the given tracker.
+   *
+   * @param tracker The tracker of in-flight requests
+   */
+  public JerseyInFlightResource(JerseyInFlightTracker tracker) {
+    if (tracker == null) {
+      throw new IllegalArgumentException("In-flight tracker cannot be null");
+    }
+    this.tracker = tracker;
+  }
+
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  public StreamingOutput slowest() {
+    return output -> {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+      tracker.writeSlowest(writer);
+      writer.flush();
+    };
+  }
+}
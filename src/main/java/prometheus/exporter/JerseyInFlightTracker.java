@@ -0,0 +1,299 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Tracks requests that are currently being processed: how many there are, globally and per
+ * resource method, the peak concurrency since the tracker was created, and which ones have been
+ * running the longest.
+ * <p>
+ * The same instance has to be registered both with the application and with the collector
+ * registry:
+ * <pre>
+ * JerseyInFlightTracker inFlight = new JerseyInFlightTracker().register();
+ * resourceConfig.register(inFlight);
+ * resourceConfig.register(new JerseyInFlightResource(inFlight));
+ * </pre>
+ * Counters are updated with atomic increments only. To find the slowest requests, every request
+ * claims one of a fixed number of slots when it starts and frees it when it finishes; if all
+ * probed slots are taken the request is still counted, as untracked, but cannot be reported among
+ * the slowest. The slots are only scanned when scraped, by {@link #collect()} and
+ * {@link #writeSlowest(Writer)}. Scraping does not reset the peak, so that every scraper sees
+ * the same value; a new peak shows as an increase of the exported value.
+ * </p>
+ * <p>
+ * The age of the oldest tracked request per resource method is exported as
+ * {@code jersey_resource_request_in_flight_oldest_seconds}; the ranked list of the slowest
+ * requests, whose labels would change on every scrape, is only available as JSON.
+ * </p>
+ */
+public class JerseyInFlightTracker extends Collector implements ApplicationEventListener {
+
+  static final int DEFAULT_CAPACITY = 1024;
+  static final int DEFAULT_SLOWEST = 10;
+
+  private static final int PROBES = 8;
+  private static final List<String> NO_LABELS = Collections.emptyList();
+  private static final List<String> METHOD_LABELS = Collections
+      .unmodifiableList(Arrays.asList("uri", "method"));
+
+  private final AtomicReferenceArray<RequestListener> slots;
+  private final int slowest;
+  private final AtomicLong inFlight = new AtomicLong();
+  private final AtomicLong peak = new AtomicLong();
+  private final AtomicLong untracked = new AtomicLong();
+  private final ResourceMethodChildren<MethodInFlight> methods = new ResourceMethodChildren<>(
+      MethodInFlight::new);
+
+  /**
+   * Creates a tracker with room for 1024 concurrently tracked requests, reporting the 10 slowest.
+   */
+  public JerseyInFlightTracker() {
+    this(DEFAULT_CAPACITY, DEFAULT_SLOWEST);
+  }
+
+  /**
+   * Creates a tracker with the given number of slots, reporting the given number of slowest
+   * requests.
+   *
+   * @param capacity Maximum number of requests tracked individually at the same time
+   * @param slowest Number of slowest in-flight requests to report
+   */
+  public JerseyInFlightTracker(int capacity, int slowest) {
+    if (capacity <= 0 || slowest <= 0) {
+      throw new IllegalArgumentException("Capacity and number of slowest requests must be positive");
+    }
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.slowest = slowest;
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    long current = inFlight.incrementAndGet();
+    long previousPeak;
+    while (current > (previousPeak = peak.get()) && !peak.compareAndSet(previousPeak, current)) {
+    }
+    return new RequestListener(System.nanoTime(),
+        requestEvent.getContainerRequest().getRequestUri().getRawPath());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples> metrics = new ArrayList<>(5);
+    long current = inFlight.get();
+    metrics.add(single("jersey_requests_in_flight", "Number of requests being processed",
+        current));
+    metrics.add(single("jersey_requests_in_flight_peak",
+        "Maximum number of requests processed at once since the tracker was created",
+        peak.get()));
+    metrics.add(single("jersey_requests_in_flight_untracked",
+        "Number of requests being processed that could not be tracked individually",
+        untracked.get()));
+
+    List<MetricFamilySamples.Sample> methodSamples = new ArrayList<>();
+    for (MethodInFlight method : methods.values()) {
+      methodSamples.add(new MetricFamilySamples.Sample("jersey_resource_requests_in_flight",
+          METHOD_LABELS, method.labelValues, method.inFlight.get()));
+    }
+    metrics.add(new MetricFamilySamples("jersey_resource_requests_in_flight", Type.GAUGE,
+        "Number of requests being processed by resource method", methodSamples));
+
+    long now = System.nanoTime();
+    Map<MethodInFlight, Long> oldestStart = oldestStartByMethod();
+    List<MetricFamilySamples.Sample> oldestSamples = new ArrayList<>(methodSamples.size());
+    for (MethodInFlight method : methods.values()) {
+      Long start = oldestStart.get(method);
+      oldestSamples.add(new MetricFamilySamples.Sample(
+          "jersey_resource_request_in_flight_oldest_seconds", METHOD_LABELS, method.labelValues,
+          start != null ? (now - start) / NANOSECONDS_PER_SECOND : 0));
+    }
+    metrics.add(new MetricFamilySamples("jersey_resource_request_in_flight_oldest_seconds",
+        Type.GAUGE, "Time since the oldest tracked request being processed by resource method "
+        + "has started, or 0 if there is none", oldestSamples));
+    return metrics;
+  }
+
+  /**
+   * Writes the slowest requests being processed as a JSON document of the form
+   * <pre>
+   * {"inFlight":3,"untracked":0,"slowest":[{"uri":"/users/{id}","method":"GET",
+   * "path":"/users/42","ageSeconds":12.5}]}
+   * </pre>
+   * The URI template and method are empty for requests not matched to a resource method yet.
+   */
+  public void writeSlowest(Writer writer) throws IOException {
+    long now = System.nanoTime();
+    RequestListener[] requests = slowest();
+    writer.write("{\"inFlight\":");
+    writer.write(Long.toString(inFlight.get()));
+    writer.write(",\"untracked\":");
+    writer.write(Long.toString(untracked.get()));
+    writer.write(",\"slowest\":[");
+    for (int i = 0; i < requests.length; i++) {
+      MethodInFlight method = requests[i].method;
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write("{\"uri\":");
+      writeJsonString(writer, method != null ? method.labelValues.get(0) : "");
+      writer.write(",\"method\":");
+      writeJsonString(writer, method != null ? method.labelValues.get(1) : "");
+      writer.write(",\"path\":");
+      writeJsonString(writer, requests[i].path);
+      writer.write(",\"ageSeconds\":");
+      writer.write(Double.toString((now - requests[i].startNanos) / NANOSECONDS_PER_SECOND));
+      writer.write('}');
+    }
+    writer.write("]}");
+  }
+
+  private int claimSlot(RequestListener listener) {
+    int capacity = slots.length();
+    int start = ThreadLocalRandom.current().nextInt(capacity);
+    for (int i = 0; i < PROBES && i < capacity; i++) {
+      int slot = (start + i) % capacity;
+      if (slots.get(slot) == null && slots.compareAndSet(slot, null, listener)) {
+        return slot;
+      }
+    }
+    untracked.incrementAndGet();
+    return -1;
+  }
+
+  /**
+   * Returns the earliest start of the tracked requests per resource method, leaving out requests
+   * not matched to a resource method yet.
+   */
+  private Map<MethodInFlight, Long> oldestStartByMethod() {
+    Map<MethodInFlight, Long> oldestStart = new IdentityHashMap<>();
+    for (int i = 0; i < slots.length(); i++) {
+      RequestListener request = slots.get(i);
+      if (request == null || request.method == null) {
+        continue;
+      }
+      Long start = oldestStart.get(request.method);
+      if (start == null || request.startNanos - start < 0) {
+        oldestStart.put(request.method, request.startNanos);
+      }
+    }
+    return oldestStart;
+  }
+
+  /**
+   * Returns the tracked requests with the earliest start, oldest first.
+   */
+  private RequestListener[] slowest() {
+    RequestListener[] oldest = new RequestListener[slowest];
+    int found = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      RequestListener request = slots.get(i);
+      if (request == null) {
+        continue;
+      }
+      if (found == oldest.length) {
+        if (request.startNanos - oldest[found - 1].startNanos >= 0) {
+          continue;
+        }
+        found--;
+      }
+      int position = found++;
+      while (position > 0 && request.startNanos - oldest[position - 1].startNanos < 0) {
+        oldest[position] = oldest[position - 1];
+        position--;
+      }
+      oldest[position] = request;
+    }
+    return Arrays.copyOf(oldest, found);
+  }
+
+  private static MetricFamilySamples single(String name, String help, double value) {
+    return new MetricFamilySamples(name, Type.GAUGE, help, Collections.singletonList(
+        new MetricFamilySamples.Sample(name, NO_LABELS, NO_LABELS, value)));
+  }
+
+  private static void writeJsonString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        writer.write('\\');
+        writer.write(c);
+      } else if (c < 0x20) {
+        writer.write(String.format("\\u%04x", (int) c));
+      } else {
+        writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+
+  private static final class MethodInFlight {
+
+    private final List<String> labelValues;
+    private final AtomicLong inFlight = new AtomicLong();
+
+    MethodInFlight(String uri, String httpMethod) {
+      this.labelValues = Collections.unmodifiableList(Arrays.asList(uri, httpMethod));
+    }
+  }
+
+  private final class RequestListener implements RequestEventListener {
+
+    private final long startNanos;
+    private final String path;
+    private final int slot;
+    private volatile MethodInFlight method;
+
+    RequestListener(long startNanos, String path) {
+      this.startNanos = startNanos;
+      this.path = path;
+      // Publishing in the slot array is a volatile write, after the fields above are set.
+      this.slot = claimSlot(this);
+    }
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      switch (event.getType()) {
+        case REQUEST_MATCHED:
+          MethodInFlight matched = methods.get(event.getUriInfo());
+          if (matched != null) {
+            matched.inFlight.incrementAndGet();
+            method = matched;
+          }
+          break;
+        case FINISHED:
+          if (method != null) {
+            method.inFlight.decrementAndGet();
+          }
+          if (slot >= 0) {
+            slots.set(slot, null);
+          } else {
+            untracked.decrementAndGet();
+          }
+          inFlight.decrementAndGet();
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongSupplier;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Records the duration of every request into a {@link DDSketch} per resource method and exports
+ * quantiles of recent requests as the {@code jersey_request_duration_sketch_seconds} summary,
+ * labeled by URI template and HTTP method.
+ * <p>
+ * Recent requests are those of the current and the previous interval, one minute by default: the
+ * bucket counts of the previous interval are cleared and reused for the next one at the end of
+ * every interval, so that the quantiles cover between one and two intervals and follow changes in
+ * latency. As for other summaries, the count and sum cover all requests since startup.
+ * </p>
+ * <p>
+ * Recent requests are counted in {@code int} buckets next to the {@code long} buckets of the
+ * cumulative sketch, so a resource method takes 16 bytes per bucket: 7376 bytes with the default
+ * accuracy. Neither recording, rotating nor scraping allocates per bucket.
+ * </p>
+ * <p>
+ * The same instance has to be registered both with the application and with the collector
+ * registry:
+ * <pre>
+ * JerseyLatencySketchListener sketches = new JerseyLatencySketchListener().register();
+ * resourceConfig.register(sketches);
+ * </pre>
+ * Summary quantiles cannot be aggregated, but the sketches themselves can: a cumulative sketch of
+ * all requests since startup is kept as well, available serialized through
+ * {@link #writeSketches(Writer)} (and {@link JerseySketchResource}), to be merged across
+ * instances with {@link DDSketch#merge(DDSketch)}.
+ * </p>
+ */
+public class JerseyLatencySketchListener extends Collector implements ApplicationEventListener {
+
+  static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  static final long DEFAULT_INTERVAL_SECONDS = 60;
+  private static final List<String> LABEL_NAMES = Collections
+      .unmodifiableList(Arrays.asList("uri", "method"));
+  private static final List<String> QUANTILE_LABEL_NAMES = Collections
+      .unmodifiableList(Arrays.asList("uri", "method", "quantile"));
+
+  private final double relativeAccuracy;
+  private final int buckets;
+  private final long intervalNanos;
+  private final LongSupplier clock;
+  private final double[] quantiles;
+  private final String[] quantileLabelValues;
+  private final ResourceMethodChildren<MethodSketch> sketches;
+
+  /**
+   * Creates a listener with sketches of the default accuracy, exporting the median and the 90th,
+   * 99th and 99.9th percentiles.
+   */
+  public JerseyLatencySketchListener() {
+    this(DDSketch.DEFAULT_RELATIVE_ACCURACY, DEFAULT_QUANTILES);
+  }
+
+  /**
+   * Creates a listener with sketches of the given accuracy, exporting the given quantiles of the
+   * requests of the last one to two minutes.
+   *
+   * @param relativeAccuracy Maximum relative error of the quantiles, between 0 and 1
+   * @param quantiles Quantiles to export, between 0 and 1
+   */
+  public JerseyLatencySketchListener(double relativeAccuracy, double... quantiles) {
+    this(relativeAccuracy, DEFAULT_INTERVAL_SECONDS, TimeUnit.SECONDS, quantiles);
+  }
+
+  /**
+   * Creates a listener with sketches of the given accuracy, exporting the given quantiles of the
+   * requests of the current and the previous interval. The interval has to be short enough for
+   * fewer than 2<sup>31</sup> requests of a resource method.
+   *
+   * @param relativeAccuracy Maximum relative error of the quantiles, between 0 and 1
+   * @param interval Length of the interval after which the sketches are rotated
+   * @param unit The unit of the interval
+   * @param quantiles Quantiles to export, between 0 and 1
+   */
+  public JerseyLatencySketchListener(double relativeAccuracy, long interval, TimeUnit unit,
+      double... quantiles) {
+    this(relativeAccuracy, interval, unit, System::nanoTime, quantiles);
+  }
+
+  /**
+   * Creates a listener that rotates its sketches by the given clock.
+   */
+  JerseyLatencySketchListener(double relativeAccuracy, long interval, TimeUnit unit,
+      LongSupplier clock, double... quantiles) {
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+    }
+    if (interval <= 0 || unit == null) {
+      throw new IllegalArgumentException("Interval must be positive");
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.buckets = newSketch().bucketCount();
+    this.intervalNanos = unit.toNanos(interval);
+    this.clock = clock;
+    this.quantiles = quantiles.clone();
+    Arrays.sort(this.quantiles);
+    this.quantileLabelValues = new String[this.quantiles.length];
+    for (int i = 0; i < this.quantiles.length; i++) {
+      if (this.quantiles[i] < 0 || this.quantiles[i] > 1) {
+        throw new IllegalArgumentException("Quantiles must be between 0 and 1");
+      }
+      quantileLabelValues[i] = doubleToGoString(this.quantiles[i]);
+    }
+    this.sketches = new ResourceMethodChildren<>(MethodSketch::new);
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    return new RequestListener(clock.getAsLong());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    String name = "jersey_request_duration_sketch_seconds";
+    long now = clock.getAsLong();
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    for (MethodSketch methodSketch : sketches.values()) {
+      methodSketch.rotateIfDue(now);
+      double[] values = methodSketch.cumulative.getQuantiles(quantiles, methodSketch);
+      for (int i = 0; i < values.length; i++) {
+        samples.add(new MetricFamilySamples.Sample(name, QUANTILE_LABEL_NAMES,
+            methodSketch.quantileLabelValues.get(i), values[i]));
+      }
+      samples.add(new MetricFamilySamples.Sample(name + "_count", LABEL_NAMES,
+          methodSketch.labelValues, methodSketch.cumulative.getCount()));
+      samples.add(new MetricFamilySamples.Sample(name + "_sum", LABEL_NAMES,
+          methodSketch.labelValues, methodSketch.cumulative.getSum()));
+    }
+    return Collections.singletonList(new MetricFamilySamples(name, Type.SUMMARY,
+        "Request duration quantiles of recent requests", samples));
+  }
+
+  /**
+   * Writes the serialized cumulative sketch of every resource method, one per line:
+   * the URI template, the HTTP method and the Base64-encoded {@link DDSketch#toByteArray()},
+   * separated by tabs.
+   */
+  public void writeSketches(Writer writer) throws IOException {
+    Base64.Encoder encoder = Base64.getEncoder();
+    for (MethodSketch methodSketch : sketches.values()) {
+      writer.write(methodSketch.labelValues.get(0));
+      writer.write('\t');
+      writer.write(methodSketch.labelValues.get(1));
+      writer.write('\t');
+      writer.write(encoder.encodeToString(methodSketch.cumulative.toByteArray()));
+      writer.write('\n');
+    }
+  }
+
+  /**
+   * Returns the number of bytes taken by the bucket counts of every resource method.
+   */
+  long bytesPerMethod() {
+    return (long) buckets * (Long.BYTES + 2 * Integer.BYTES);
+  }
+
+  private DDSketch newSketch() {
+    return new DDSketch(relativeAccuracy, DDSketch.DEFAULT_MIN_VALUE, DDSketch.DEFAULT_MAX_VALUE);
+  }
+
+  /**
+   * Sketches of a resource method, whose bucket counts of recent requests are read by
+   * {@link #applyAsLong(int)}.
+   */
+  private final class MethodSketch implements IntToLongFunction {
+
+    private final List<String> labelValues;
+    private final List<List<String>> quantileLabelValues;
+    private final DDSketch cumulative = newSketch();
+
+    /**
+     * Bucket counts of two intervals, one after the other: the current interval starts at
+     * {@code currentOffset}, the previous one at the other half.
+     */
+    private final AtomicIntegerArray recent = new AtomicIntegerArray(2 * buckets);
+    private volatile int currentOffset;
+    private volatile long rotateAt = clock.getAsLong() + intervalNanos;
+
+    MethodSketch(String uri, String httpMethod) {
+      this.labelValues = Collections.unmodifiableList(Arrays.asList(uri, httpMethod));
+      List<List<String>> quantileLabels = new ArrayList<>(quantiles.length);
+      for (String quantile : JerseyLatencySketchListener.this.quantileLabelValues) {
+        quantileLabels.add(Collections.unmodifiableList(Arrays.asList(uri, httpMethod, quantile)));
+      }
+      this.quantileLabelValues = quantileLabels;
+    }
+
+    void record(double duration, long now) {
+      rotateIfDue(now);
+      int bucket = cumulative.index(duration);
+      recent.incrementAndGet(currentOffset + bucket);
+      cumulative.recordInBucket(bucket, duration);
+    }
+
+    /**
+     * Starts a new interval if the current one has ended, clearing the counts of the previous
+     * interval to reuse them. If more than one interval has passed without requests, the counts
+     * of the current interval are cleared as well.
+     */
+    void rotateIfDue(long now) {
+      if (now - rotateAt < 0) {
+        return;
+      }
+      synchronized (this) {
+        long elapsed = now - rotateAt;
+        if (elapsed < 0) {
+          return;
+        }
+        int previousOffset = buckets - currentOffset;
+        clear(previousOffset);
+        if (elapsed >= intervalNanos) {
+          clear(currentOffset);
+        }
+        currentOffset = previousOffset;
+        rotateAt = now + intervalNanos - elapsed % intervalNanos;
+      }
+    }
+
+    private void clear(int offset) {
+      for (int i = offset; i < offset + buckets; i++) {
+        recent.set(i, 0);
+      }
+    }
+
+    /**
+     * Returns the count of the given bucket in the current and the previous interval.
+     */
+    @Override
+    public long applyAsLong(int bucket) {
+      return (long) recent.get(bucket) + recent.get(buckets + bucket);
+    }
+  }
+
+  private final class RequestListener implements RequestEventListener {
+
+    private final long startNanos;
+
+    RequestListener(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      if (event.getType() != RequestEvent.Type.FINISHED) {
+        return;
+      }
+      MethodSketch methodSketch = sketches.get(event.getUriInfo());
+      if (methodSketch != null) {
+        long now = clock.getAsLong();
+        methodSketch.record((now - startNanos) / NANOSECONDS_PER_SECOND, now);
+      }
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.glassfish.jersey.server.model.Resource;
+
+/**
+ * JAX-RS resource exposing Jersey metrics at {@code /metrics} without building the whole scrape
+ * in memory.
+ * <p>
+ * Usage example, in the ResourceConfig subclass:
+ * <pre>
+ * registerResources(
+ *     new JerseyMetricsResource(new JerseyStatisticsCollector(monitoringStatistics)).toResource());
+ * </pre>
+ * Registering the instance itself with {@code register} works as well, but makes Jersey log that
+ * it ignores it as a provider.
+ * The Jersey statistics are written straight from the monitoring statistics to the response
+ * stream, followed by all metrics of the given registry (the default registry unless specified).
+ * The collector passed here must therefore not be registered with that registry as well.
+ * </p>
+ * <p>
+ * Scrapes accepting {@code application/openmetrics-text} with a non-zero quality get the
+ * OpenMetrics text format, all others the Prometheus text format 0.0.4. The response is
+ * gzip-compressed if the scraper accepts it, so Jersey's own encoding filter should not be
+ * applied to this resource.
+ * </p>
+ */
+@Path("metrics")
+public class JerseyMetricsResource {
+
+  private static final int POOLED_WRITERS = 4;
+
+  private final JerseyStatisticsCollector collector;
+  private final CollectorRegistry registry;
+
+  /**
+   * Writers, with their compressors, kept for reuse by later scrapes, per format. They belong to
+   * this resource rather than to container threads, so that nothing outlives the application on
+   * redeployment.
+   */
+  private final BlockingQueue<PooledWriter> textWriters = new ArrayBlockingQueue<>(POOLED_WRITERS);
+  private final BlockingQueue<PooledWriter> openMetricsWriters =
+      new ArrayBlockingQueue<>(POOLED_WRITERS);
+
+  /**
+   * Creates a resource exposing the given collector and the default registry.
+   *
+   * @param collector The Jersey statistics collector to expose, or {@code null} to expose the
+   * registry only
+   */
+  public JerseyMetricsResource(JerseyStatisticsCollector collector) {
+    this(collector, CollectorRegistry.defaultRegistry);
+  }
+
+  /**
+   * Creates a resource exposing the given collector and registry.
+   *
+   * @param collector The Jersey statistics collector to expose, or {@code null} to expose the
+   * registry only
+   * @param registry The registry whose metrics are exposed after the Jersey statistics
+   */
+  public JerseyMetricsResource(JerseyStatisticsCollector collector, CollectorRegistry registry) {
+    if (registry == null) {
+      throw new IllegalArgumentException("Collector registry cannot be null");
+    }
+    this.collector = collector;
+    this.registry = registry;
+  }
+
+  /**
+   * Returns the {@code /metrics} resource handled by this instance, to be registered with
+   * {@code ResourceConfig.registerResources}.
+   */
+  public Resource toResource() {
+    Resource.Builder builder = Resource.builder(
+        JerseyMetricsResource.class.getAnnotation(Path.class).value());
+    try {
+      builder.addMethod(HttpMethod.GET).handledBy(this,
+          JerseyMetricsResource.class.getMethod("metrics", String.class, String.class));
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+    return builder.build();
+  }
+
+  @GET
+  public Response metrics(@HeaderParam(HttpHeaders.ACCEPT) String accept,
+      @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+    boolean openMetrics = acceptsOpenMetrics(accept);
+    boolean gzip = acceptsGzip(acceptEncoding);
+    StreamingOutput entity = output -> write(output, openMetrics, gzip);
+    Response.ResponseBuilder response = Response.ok(entity,
+        openMetrics ? ExpositionWriter.CONTENT_TYPE_OPENMETRICS : ExpositionWriter.CONTENT_TYPE_004)
+        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+    if (gzip) {
+      response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return response.build();
+  }
+
+  /**
+   * Returns whether the Accept header value accepts the OpenMetrics text format with a non-zero
+   * quality. Wildcards are not taken into account, they are served the Prometheus text format.
+   */
+  static boolean acceptsOpenMetrics(String accept) {
+    return quality(accept, "application/openmetrics-text") > 0;
+  }
+
+  /**
+   * Returns whether the Accept-Encoding header value accepts gzip, explicitly or through
+   * {@code *}, with a non-zero quality.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    double quality = quality(acceptEncoding, "gzip", "x-gzip");
+    return quality > 0 || (quality < 0 && quality(acceptEncoding, "*") > 0);
+  }
+
+  /**
+   * Returns the quality of the first element of a header value such as Accept or Accept-Encoding
+   * that has one of the given names, ignoring case, 1 if it has no quality, or -1 if there is no
+   * such element.
+   */
+  private static double quality(String header, String... names) {
+    if (header == null) {
+      return -1;
+    }
+    for (String element : header.split(",")) {
+      String[] parameters = element.split(";");
+      String name = parameters[0].trim();
+      boolean matches = false;
+      for (String candidate : names) {
+        matches |= name.equalsIgnoreCase(candidate);
+      }
+      if (!matches) {
+        continue;
+      }
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim();
+        if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2).trim());
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      return quality;
+    }
+    return -1;
+  }
+
+  private void write(OutputStream output, boolean openMetrics, boolean gzip) throws IOException {
+    BlockingQueue<PooledWriter> writers = openMetrics ? openMetricsWriters : textWriters;
+    PooledWriter pooled = writers.poll();
+    if (pooled == null) {
+      pooled = new PooledWriter(openMetrics);
+    }
+    try {
+      if (gzip) {
+        GzipStream compressed = pooled.gzip();
+        write(pooled.writer, compressed.reset(output));
+        compressed.finish();
+      } else {
+        write(pooled.writer, output);
+      }
+    } finally {
+      pooled.reset();
+      if (!writers.offer(pooled)) {
+        pooled.end();
+      }
+    }
+  }
+
+  private void write(ExpositionWriter writer, OutputStream target) throws IOException {
+    writer.reset(target);
+    try {
+      if (collector != null) {
+        collector.write(writer);
+      }
+      Enumeration<MetricFamilySamples> families = registry.metricFamilySamples();
+      while (families.hasMoreElements()) {
+        writer.writeFamily(families.nextElement());
+      }
+      writer.finish();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Writer of a scrape, and the compressor for scrapes accepting gzip, created on first use.
+   */
+  private static final class PooledWriter {
+
+    private final ExpositionWriter writer;
+    private GzipStream gzip;
+
+    PooledWriter(boolean openMetrics) {
+      this.writer = new ExpositionWriter(openMetrics);
+    }
+
+    GzipStream gzip() {
+      if (gzip == null) {
+        gzip = new GzipStream();
+      }
+      return gzip;
+    }
+
+    /**
+     * Lets go of the response stream of the scrape.
+     */
+    void reset() {
+      writer.reset(null);
+      if (gzip != null) {
+        gzip.out = null;
+      }
+    }
+
+    /**
+     * Releases the native memory of the compressor, if this writer is not kept.
+     */
+    void end() {
+      if (gzip != null) {
+        gzip.deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Gzip stream that can be reused for several scrapes, unlike {@link GZIPOutputStream}, which
+   * creates a new deflater and buffer every time. Closing it neither finishes the compressed data
+   * nor closes the container's stream.
+   */
+  private static final class GzipStream extends OutputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+        (byte) 0xff};
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private final byte[] single = new byte[1];
+    private OutputStream out;
+
+    /**
+     * Starts compressed data on the given stream by writing the gzip header.
+     */
+    GzipStream reset(OutputStream out) throws IOException {
+      this.out = out;
+      deflater.reset();
+      crc.reset();
+      out.write(HEADER);
+      return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      crc.update(b, off, len);
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput()) {
+        deflate();
+      }
+    }
+
+    /**
+     * Writes the rest of the compressed data and the gzip trailer.
+     */
+    void finish() throws IOException {
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflate();
+      }
+      int checksum = (int) crc.getValue();
+      int size = (int) deflater.getBytesRead();
+      for (int i = 0; i < 4; i++) {
+        buffer[i] = (byte) (checksum >>> (8 * i));
+        buffer[4 + i] = (byte) (size >>> (8 * i));
+      }
+      out.write(buffer, 0, 8);
+    }
+
+    private void deflate() throws IOException {
+      int length = deflater.deflate(buffer, 0, buffer.length);
+      if (length > 0) {
+        out.write(buffer, 0, length);
+      }
+    }
+  }
+}
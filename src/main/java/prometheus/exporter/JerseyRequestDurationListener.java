@@ -0,0 +1,87 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Records the duration of every request into a {@code jersey_request_duration_seconds} histogram
+ * labeled by URI template and HTTP method.
+ * <p>
+ * Unlike the min/max/avg gauges of {@link JerseyStatisticsCollector}, histograms can be aggregated
+ * across instances and used to compute quantiles. Usage example:
+ * <pre>
+ * resourceConfig.register(new JerseyRequestDurationListener());
+ * </pre>
+ * Histogram children are resolved once per resource method and cached, so recording a request
+ * costs one map lookup keyed by the resource method and a lock-free bucket increment.
+ * Requests that did not match any resource method are not recorded.
+ * </p>
+ */
+public class JerseyRequestDurationListener implements ApplicationEventListener {
+
+  static final double[] DEFAULT_BUCKETS = {.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5,
+      5, 7.5, 10};
+
+  private final Histogram requestDuration;
+  private final ResourceMethodChildren<Histogram.Child> children;
+
+  /**
+   * Creates a listener with the default buckets, registered with the default registry.
+   */
+  public JerseyRequestDurationListener() {
+    this(CollectorRegistry.defaultRegistry, DEFAULT_BUCKETS);
+  }
+
+  /**
+   * Creates a listener with the given buckets, registered with the given registry.
+   *
+   * @param registry The registry to register the histogram with
+   * @param buckets Upper bounds of the histogram buckets, in seconds
+   */
+  public JerseyRequestDurationListener(CollectorRegistry registry, double... buckets) {
+    if (registry == null) {
+      throw new IllegalArgumentException("Collector registry cannot be null");
+    }
+    this.requestDuration = Histogram.build()
+        .name("jersey_request_duration_seconds")
+        .help("Request duration")
+        .labelNames("uri", "method")
+        .buckets(buckets)
+        .register(registry);
+    this.children = new ResourceMethodChildren<>(requestDuration::labels);
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    return new RequestListener(System.nanoTime());
+  }
+
+  private final class RequestListener implements RequestEventListener {
+
+    private final long startNanos;
+
+    RequestListener(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      if (event.getType() != RequestEvent.Type.FINISHED) {
+        return;
+      }
+      Histogram.Child child = children.get(event.getUriInfo());
+      if (child != null) {
+        child.observe((System.nanoTime() - startNanos) / Collector.NANOSECONDS_PER_SECOND);
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Records how long each phase of request processing takes into a
+ * {@code jersey_request_phase_duration_seconds} histogram labeled by URI template, HTTP method and
+ * phase, complementing the total duration recorded by {@link JerseyRequestDurationListener}.
+ * <p>
+ * Usage example:
+ * <pre>
+ * resourceConfig.register(new JerseyRequestPhaseListener());
+ * </pre>
+ * The phases are delimited by Jersey request events:
+ * <ul>
+ * <li>{@code pre_matching}: from START to MATCHING_START, i.e. pre-matching request filters</li>
+ * <li>{@code matching}: from MATCHING_START to REQUEST_MATCHED</li>
+ * <li>{@code request_filters}: from REQUEST_MATCHED to REQUEST_FILTERED</li>
+ * <li>{@code resource_method}: from RESOURCE_METHOD_START to RESOURCE_METHOD_FINISHED</li>
+ * <li>{@code response_filters}: from RESP_FILTERS_START to RESP_FILTERS_FINISHED</li>
+ * <li>{@code response_writing}: from RESP_FILTERS_FINISHED to FINISHED, mostly entity
+ * serialization</li>
+ * </ul>
+ * Each request keeps its timestamps in a primitive array indexed by event type, so recording
+ * allocates nothing beyond the per-request listener. Phases whose events did not occur, e.g.
+ * because the request failed, are not recorded.
+ * </p>
+ */
+public class JerseyRequestPhaseListener implements ApplicationEventListener {
+
+  static final double[] DEFAULT_BUCKETS = {.0001, .0005, .001, .0025, .005, .01, .025, .05, .1,
+      .25, .5, 1, 5};
+
+  private static final RequestEvent.Type[] TYPES = RequestEvent.Type.values();
+  private static final Phase[] PHASES = Phase.values();
+
+  private final ResourceMethodChildren<Histogram.Child[]> children;
+
+  /**
+   * Creates a listener with the default buckets, registered with the default registry.
+   */
+  public JerseyRequestPhaseListener() {
+    this(CollectorRegistry.defaultRegistry, DEFAULT_BUCKETS);
+  }
+
+  /**
+   * Creates a listener with the given buckets, registered with the given registry.
+   *
+   * @param registry The registry to register the histogram with
+   * @param buckets Upper bounds of the histogram buckets, in seconds
+   */
+  public JerseyRequestPhaseListener(CollectorRegistry registry, double... buckets) {
+    if (registry == null) {
+      throw new IllegalArgumentException("Collector registry cannot be null");
+    }
+    Histogram phaseDuration = Histogram.build()
+        .name("jersey_request_phase_duration_seconds")
+        .help("Duration of request processing phases")
+        .labelNames("uri", "method", "phase")
+        .buckets(buckets)
+        .register(registry);
+    this.children = new ResourceMethodChildren<>((uri, httpMethod) -> {
+      Histogram.Child[] phases = new Histogram.Child[PHASES.length];
+      for (Phase phase : PHASES) {
+        phases[phase.ordinal()] = phaseDuration.labels(uri, httpMethod, phase.label);
+      }
+      return phases;
+    });
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    RequestListener listener = new RequestListener();
+    listener.onEvent(requestEvent);
+    return listener;
+  }
+
+  private enum Phase {
+    PRE_MATCHING("pre_matching", RequestEvent.Type.START, RequestEvent.Type.MATCHING_START),
+    MATCHING("matching", RequestEvent.Type.MATCHING_START, RequestEvent.Type.REQUEST_MATCHED),
+    REQUEST_FILTERS("request_filters", RequestEvent.Type.REQUEST_MATCHED,
+        RequestEvent.Type.REQUEST_FILTERED),
+    RESOURCE_METHOD("resource_method", RequestEvent.Type.RESOURCE_METHOD_START,
+        RequestEvent.Type.RESOURCE_METHOD_FINISHED),
+    RESPONSE_FILTERS("response_filters", RequestEvent.Type.RESP_FILTERS_START,
+        RequestEvent.Type.RESP_FILTERS_FINISHED),
+    RESPONSE_WRITING("response_writing", RequestEvent.Type.RESP_FILTERS_FINISHED,
+        RequestEvent.Type.FINISHED);
+
+    private final String label;
+    private final int start;
+    private final int end;
+
+    Phase(String label, RequestEvent.Type start, RequestEvent.Type end) {
+      this.label = label;
+      this.start = start.ordinal();
+      this.end = end.ordinal();
+    }
+  }
+
+  private final class RequestListener implements RequestEventListener {
+
+    private final long[] timestamps = new long[TYPES.length];
+    private int seen;
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      int type = event.getType().ordinal();
+      timestamps[type] = System.nanoTime();
+      seen |= 1 << type;
+      if (event.getType() != RequestEvent.Type.FINISHED) {
+        return;
+      }
+      Histogram.Child[] phases = children.get(event.getUriInfo());
+      if (phases == null) {
+        return;
+      }
+      for (Phase phase : PHASES) {
+        if ((seen & (1 << phase.start)) != 0 && (seen & (1 << phase.end)) != 0) {
+          phases[phase.ordinal()].observe(
+              (timestamps[phase.end] - timestamps[phase.start]) / Collector.NANOSECONDS_PER_SECOND);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package prometheus.exporter;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * JAX-RS resource exposing the serialized latency sketches of a {@link JerseyLatencySketchListener}
+ * at {@code /metrics/sketches}, for aggregators that merge them across instances.
+ * <p>
+ * Usage example, in the ResourceConfig subclass:
+ * <pre>
+ * register(sketches);
+ * register(new JerseySketchResource(sketches));
+ * </pre>
+ * See {@link JerseyLatencySketchListener#writeSketches(Writer)} for the format.
+ * </p>
+ */
+@Path("metrics/sketches")
+public class JerseySketchResource {
+
+  private final JerseyLatencySketchListener listener;
+
+  /**
+   * Creates a resource exposing the sketches of the given listener.
+   *
+   * @param listener The listener recording the sketches
+   */
+  public JerseySketchResource(JerseyLatencySketchListener listener) {
+    if (listener == null) {
+      throw new IllegalArgumentException("Sketch listener cannot be null");
+    }
+    this.listener = listener;
+  }
+
+  @GET
+  @Produces(MediaType.TEXT_PLAIN)
+  public StreamingOutput sketches() {
+    return output -> {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+      listener.writeSketches(writer);
+      writer.flush();
+    };
+  }
+}
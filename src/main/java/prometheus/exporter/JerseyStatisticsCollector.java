@@ -2,15 +2,23 @@ package prometheus.exporter;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.CounterMetricFamily;
-import io.prometheus.client.GaugeMetricFamily;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.glassfish.jersey.server.model.ResourceMethod;
 import org.glassfish.jersey.server.monitoring.ExceptionMapperStatistics;
+import org.glassfish.jersey.server.monitoring.ExecutionStatistics;
 import org.glassfish.jersey.server.monitoring.MonitoringStatistics;
 import org.glassfish.jersey.server.monitoring.ResourceMethodStatistics;
 import org.glassfish.jersey.server.monitoring.ResourceStatistics;
@@ -47,7 +55,44 @@ import org.glassfish.jersey.server.monitoring.TimeWindowStatistics;
  */
 public class JerseyStatisticsCollector extends Collector {
 
+  private static final List<String> NO_LABELS = Collections.emptyList();
+  private static final List<String> CLASS_NAME_LABEL = Collections.singletonList("class_name");
+  private static final List<String> RESPONSE_CODE_LABEL = Collections
+      .singletonList("response_code");
+  private static final List<String> URI_LABELS = Collections
+      .unmodifiableList(Arrays.asList("uri", "method", "interval"));
+  static final String OTHER_URI = "__other__";
+
   private final MonitoringStatistics monitoringStatistics;
+  private final int maxSeries;
+
+  /**
+   * Label values of every (uri, resource method, time window) tuple seen so far, so that repeated
+   * scrapes reuse the same immutable lists instead of rebuilding them for each sample.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<ResourceMethod, MethodLabels>> uriLabels =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Class<?>, List<String>> exceptionMapperLabels =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, List<String>> responseCodeLabels =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, MethodLabels> otherLabels = new ConcurrentHashMap<>();
+  private final AtomicInteger cachedMethodCount = new AtomicInteger();
+  private final AtomicLong scrapeCount = new AtomicLong();
+
+  /**
+   * Number of samples per uri family in the previous scrape, used to presize the sample lists.
+   */
+  private volatile int lastUriSampleCount = 16;
+
+  /**
+   * Busiest (uri, resource method) pairs by request count, only used if the number of series is
+   * limited.
+   */
+  private final SpaceSaving<MethodLabels> heavyHitters;
+  private volatile int droppedSeries;
+  private volatile boolean scrapeMetrics;
+  private volatile long idleTtlNanos;
 
   /**
    * Creates a new collector for the given monitoring statistics provider.
@@ -56,18 +101,95 @@ public class JerseyStatisticsCollector extends Collector {
    * metrics for
    */
   public JerseyStatisticsCollector(MonitoringStatistics monitoringStatistics) {
+    this(monitoringStatistics, 0);
+  }
+
+  /**
+   * Creates a new collector for the given monitoring statistics provider, exporting uri statistics
+   * for at most the given number of distinct (uri, resource method) pairs.
+   * <p>
+   * Past that limit only the pairs with the most requests are exported individually, tracked with
+   * a bounded heavy-hitters table that is updated with the requests since the previous scrape. All
+   * other pairs are aggregated into series labeled {@code uri="__other__"}, and their number is
+   * exported as {@code jersey_uri_series_dropped}.
+   * </p>
+   *
+   * @param monitoringStatistics The Jersey monitoring statistics provider to collect
+   * metrics for
+   * @param maxSeries The maximum number of (uri, resource method) pairs to export, or 0 for no
+   * limit
+   */
+  public JerseyStatisticsCollector(MonitoringStatistics monitoringStatistics, int maxSeries) {
     if (monitoringStatistics == null) {
       throw new IllegalArgumentException("Monitoring statistics cannot be null");
     }
+    if (maxSeries < 0) {
+      throw new IllegalArgumentException("Maximum number of series cannot be negative");
+    }
     this.monitoringStatistics = monitoringStatistics;
+    this.maxSeries = maxSeries;
+    this.heavyHitters = maxSeries > 0 ? new SpaceSaving<MethodLabels>(maxSeries) : null;
+  }
+
+  /**
+   * Additionally exports the cost of each scrape in {@code jersey_exporter_*} families: the
+   * duration of collecting exception mapper, response and uri statistics, the number of families
+   * and samples, and the bytes allocated by the scraping thread if the JVM can measure them.
+   * These describe the scrape they are part of, not counting their own samples. When the metrics
+   * are streamed by {@link JerseyMetricsResource}, the durations include writing the samples.
+   */
+  public JerseyStatisticsCollector exportScrapeMetrics() {
+    this.scrapeMetrics = true;
+    return this;
+  }
+
+  /**
+   * Stops exporting uri statistics of resource methods that have had no new requests for longer
+   * than the given time, until they are requested again. A resource method counts as active when
+   * it is first seen. New requests are told by the start time of the latest request, so the time
+   * window statistics of expired methods are not read at all, and expired methods take no part
+   * in limiting the number of series.
+   *
+   * @param ttl How long a resource method may be idle before it is no longer exported
+   * @param unit The unit of the time
+   */
+  public JerseyStatisticsCollector expireIdleMethods(long ttl, TimeUnit unit) {
+    if (ttl <= 0 || unit == null) {
+      throw new IllegalArgumentException("Idle time must be positive");
+    }
+    this.idleTtlNanos = unit.toNanos(ttl);
+    return this;
   }
 
   @Override
   public List<Collector.MetricFamilySamples> collect() {
-    List<Collector.MetricFamilySamples> metrics = new ArrayList<>();
-    metrics.addAll(getExceptionMapperStatistics());
-    metrics.addAll(getResponseStatistics());
-    metrics.addAll(getUriStatistics());
+    return collect(this.monitoringStatistics);
+  }
+
+  /**
+   * Collects metrics from the given statistics rather than from the provider this collector was
+   * created with, sharing the label caches of this collector.
+   */
+  List<Collector.MetricFamilySamples> collect(MonitoringStatistics monitoringStatistics) {
+    if (!scrapeMetrics) {
+      List<Collector.MetricFamilySamples> metrics = new ArrayList<>(10);
+      addExceptionMapperStatistics(monitoringStatistics, metrics);
+      addResponseStatistics(monitoringStatistics, metrics);
+      addUriStatistics(monitoringStatistics, metrics);
+      return metrics;
+    }
+    List<Collector.MetricFamilySamples> metrics = new ArrayList<>(14);
+    ScrapeCost cost = new ScrapeCost();
+    addExceptionMapperStatistics(monitoringStatistics, metrics);
+    cost.endSection();
+    addResponseStatistics(monitoringStatistics, metrics);
+    cost.endSection();
+    addUriStatistics(monitoringStatistics, metrics);
+    cost.endSection();
+    for (MetricFamilySamples family : metrics) {
+      cost.count(1, family.samples.size());
+    }
+    metrics.addAll(cost.toMetrics());
     return metrics;
   }
 
@@ -76,151 +198,775 @@ public class JerseyStatisticsCollector extends Collector {
     return super.register(registry);
   }
 
-  private List<MetricFamilySamples> getExceptionMapperStatistics() {
-    ExceptionMapperStatistics exceptionMapperStats = this.monitoringStatistics
+  private void addExceptionMapperStatistics(MonitoringStatistics monitoringStatistics,
+      List<MetricFamilySamples> metrics) {
+    ExceptionMapperStatistics exceptionMapperStats = monitoringStatistics
         .getExceptionMapperStatistics();
-    List<MetricFamilySamples> metrics = new ArrayList<>();
 
-    CounterMetricFamily successfulMappingsCount = new CounterMetricFamily(
-        "jersey_exception_mappings_count_successful",
+    metrics.add(single("jersey_exception_mappings_count_successful", Type.COUNTER,
         "Count of all successful exception mappings",
-        Collections.EMPTY_LIST
-    );
-    successfulMappingsCount
-        .addMetric(Collections.EMPTY_LIST, exceptionMapperStats.getSuccessfulMappings());
-    metrics.add(successfulMappingsCount);
-
-    CounterMetricFamily unsuccessfulMappingsCount = new CounterMetricFamily(
-        "jersey_exception_mappings_count_unsuccessful",
+        exceptionMapperStats.getSuccessfulMappings()));
+    metrics.add(single("jersey_exception_mappings_count_unsuccessful", Type.COUNTER,
         "Count of all unsuccessful exception mappings",
-        Collections.EMPTY_LIST
-    );
-    unsuccessfulMappingsCount
-        .addMetric(Collections.EMPTY_LIST, exceptionMapperStats.getUnsuccessfulMappings());
-    metrics.add(unsuccessfulMappingsCount);
-
-    CounterMetricFamily totalMappingsCount = new CounterMetricFamily(
-        "jersey_exception_mappings_count_total",
+        exceptionMapperStats.getUnsuccessfulMappings()));
+    metrics.add(single("jersey_exception_mappings_count_total", Type.COUNTER,
         "Total count of exception mappings",
-        Collections.EMPTY_LIST
-    );
-    totalMappingsCount.addMetric(Collections.EMPTY_LIST, exceptionMapperStats.getTotalMappings());
-    metrics.add(totalMappingsCount);
+        exceptionMapperStats.getTotalMappings()));
 
-    List<String> labelNames = Arrays.asList("class_name");
     Map<Class<?>, Long> exceptionMapperExecutions = exceptionMapperStats
         .getExceptionMapperExecutions();
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>(exceptionMapperExecutions.size());
     for (Map.Entry<Class<?>, Long> entry : exceptionMapperExecutions.entrySet()) {
-      CounterMetricFamily exceptionMapperExecutionCount = new CounterMetricFamily(
-          "jersey_exception_mapper_execution_count",
-          "Total count of exception mapper executions",
-          labelNames
-      );
-      exceptionMapperExecutionCount
-          .addMetric(Collections.singletonList(entry.getKey().getCanonicalName()),
-              entry.getValue());
-      metrics.add(exceptionMapperExecutionCount);
+      samples.add(new MetricFamilySamples.Sample("jersey_exception_mapper_execution_count",
+          CLASS_NAME_LABEL, exceptionMapperLabel(entry.getKey()), entry.getValue()));
     }
-
-    return metrics;
+    metrics.add(new MetricFamilySamples("jersey_exception_mapper_execution_count", Type.COUNTER,
+        "Total count of exception mapper executions", samples));
   }
 
-  private List<MetricFamilySamples> getResponseStatistics() {
-    ResponseStatistics responseStatistics = this.monitoringStatistics.getResponseStatistics();
+  private void addResponseStatistics(MonitoringStatistics monitoringStatistics,
+      List<MetricFamilySamples> metrics) {
+    ResponseStatistics responseStatistics = monitoringStatistics.getResponseStatistics();
     Map<Integer, Long> responseCodes = responseStatistics.getResponseCodes();
-    List<String> labelNames = Arrays.asList("response_code");
-    List<MetricFamilySamples> metrics = new ArrayList<>();
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>(responseCodes.size());
     for (Map.Entry<Integer, Long> responseCode : responseCodes.entrySet()) {
-      CounterMetricFamily requestCount = new CounterMetricFamily(
-          "jersey_response_count",
-          "Count of responses with certain response code",
-          labelNames
-      );
-      requestCount.addMetric(
-          Collections.singletonList(responseCode.getKey().toString()),
-          responseCode.getValue()
-      );
-      metrics.add(requestCount);
+      samples.add(new MetricFamilySamples.Sample("jersey_response_count", RESPONSE_CODE_LABEL,
+          responseCodeLabel(responseCode.getKey()), responseCode.getValue()));
     }
-    return metrics;
+    metrics.add(new MetricFamilySamples("jersey_response_count", Type.COUNTER,
+        "Count of responses with certain response code", samples));
+  }
+
+  private void addUriStatistics(MonitoringStatistics monitoringStatistics,
+      List<MetricFamilySamples> metrics) {
+    Map<String, ResourceStatistics> uriStatistics = monitoringStatistics.getUriStatistics();
+    long scrapeNanos = System.nanoTime();
+    updateHeavyHitters(uriStatistics, scrapeNanos);
+    UriMetric[] uriMetrics = UriMetric.values();
+    List<List<MetricFamilySamples.Sample>> samples = new ArrayList<>(uriMetrics.length);
+    for (int i = 0; i < uriMetrics.length; i++) {
+      samples.add(new ArrayList<MetricFamilySamples.Sample>(lastUriSampleCount));
+    }
+
+    forEachTimeWindow(uriStatistics, scrapeNanos, new TimeWindowVisitor() {
+      @Override
+      public void visit(List<String> labelValues, TimeWindowStatistics stats) {
+        for (UriMetric uriMetric : uriMetrics) {
+          samples.get(uriMetric.ordinal()).add(new MetricFamilySamples.Sample(uriMetric.name,
+              URI_LABELS, labelValues, uriMetric.value(stats)));
+        }
+      }
+
+      @Override
+      public void visitMethod(MethodLabels labels, Map<Long, TimeWindowStatistics> windows,
+          long requestCount) {
+        MethodSamples cached = labels.samples;
+        if (cached != null && cached.isReusable(requestCount, windows.size())) {
+          cached.reuse(samples, windows);
+        } else {
+          cached = MethodSamples.compute(labels, windows, requestCount);
+          labels.samples = cached;
+          cached.addTo(samples);
+        }
+      }
+    });
+    lastUriSampleCount = Math.max(16, samples.get(0).size());
+
+    for (UriMetric uriMetric : uriMetrics) {
+      metrics.add(new MetricFamilySamples(uriMetric.name, uriMetric.type, uriMetric.help,
+          samples.get(uriMetric.ordinal())));
+    }
+    if (heavyHitters != null) {
+      metrics.add(droppedSeries());
+    }
+  }
+
+  /**
+   * Writes the same metrics as {@link #collect()} in exposition format without materializing the
+   * samples of the per-uri families, which make up almost all of a scrape. The uri statistics are
+   * read once and walked once per family, writing every sample as it is visited, so that the
+   * memory needed does not grow with the number of resource methods. Jersey's statistics are
+   * immutable snapshots, so all families describe the same statistics.
+   */
+  void write(ExpositionWriter writer) {
+    ScrapeCost cost = scrapeMetrics ? new ScrapeCost() : null;
+    List<MetricFamilySamples> metrics = new ArrayList<>(5);
+    addExceptionMapperStatistics(monitoringStatistics, metrics);
+    int exceptionMapperFamilies = metrics.size();
+    for (MetricFamilySamples family : metrics) {
+      writer.writeFamily(family);
+    }
+    if (cost != null) {
+      cost.endSection();
+    }
+    addResponseStatistics(monitoringStatistics, metrics);
+    for (MetricFamilySamples family : metrics.subList(exceptionMapperFamilies, metrics.size())) {
+      writer.writeFamily(family);
+    }
+    if (cost != null) {
+      cost.endSection();
+    }
+    Map<String, ResourceStatistics> uriStatistics = monitoringStatistics.getUriStatistics();
+    long scrapeNanos = System.nanoTime();
+    updateHeavyHitters(uriStatistics, scrapeNanos);
+    SampleWriter sampleWriter = new SampleWriter(writer);
+    for (UriMetric uriMetric : UriMetric.values()) {
+      writer.startFamily(uriMetric.name, uriMetric.type, uriMetric.help);
+      sampleWriter.uriMetric = uriMetric;
+      forEachTimeWindow(uriStatistics, scrapeNanos, sampleWriter);
+    }
+    if (heavyHitters != null) {
+      metrics.add(droppedSeries());
+      writer.writeFamily(metrics.get(metrics.size() - 1));
+    }
+    if (cost != null) {
+      cost.endSection();
+      for (MetricFamilySamples family : metrics) {
+        cost.count(1, family.samples.size());
+      }
+      cost.count(UriMetric.values().length, sampleWriter.samples);
+      for (MetricFamilySamples family : cost.toMetrics()) {
+        writer.writeFamily(family);
+      }
+    }
+  }
+
+  private MetricFamilySamples droppedSeries() {
+    return single("jersey_uri_series_dropped", Type.GAUGE,
+        "Number of uri and method pairs aggregated into uri=\"" + OTHER_URI + "\"",
+        droppedSeries);
   }
 
-  private List<MetricFamilySamples> getUriStatistics() {
-    Map<String, ResourceStatistics> uriStatistics = this.monitoringStatistics.getUriStatistics();
-    List<String> labelNames = Arrays.asList("uri", "method", "interval");
-    List<String> labelValues = new ArrayList<>();
-    List<MetricFamilySamples> metrics = new ArrayList<>();
+  /**
+   * Offers the requests of every (uri, resource method) pair since the previous scrape to the
+   * heavy-hitters table and marks the pairs it does not track as folded into the
+   * {@code __other__} series. Nothing is folded while the number of pairs is within the limit.
+   * Expired pairs are neither offered nor counted, and give up their place in the table.
+   */
+  private void updateHeavyHitters(Map<String, ResourceStatistics> uriStatistics,
+      long scrapeNanos) {
+    if (heavyHitters == null) {
+      return;
+    }
+    long ttlNanos = idleTtlNanos;
+    synchronized (heavyHitters) {
+      int series = 0;
+      for (Map.Entry<String, ResourceStatistics> uriStatsEntry : uriStatistics.entrySet()) {
+        ConcurrentMap<ResourceMethod, MethodLabels> methodLabels = methodLabels(
+            uriStatsEntry.getKey());
+        for (Map.Entry<ResourceMethod, ResourceMethodStatistics> methodStatisticsEntry : uriStatsEntry
+            .getValue().getResourceMethodStatistics().entrySet()) {
+          MethodLabels labels = methodLabels(methodLabels, uriStatsEntry.getKey(),
+              methodStatisticsEntry.getKey());
+          ExecutionStatistics executionStatistics = methodStatisticsEntry.getValue()
+              .getMethodStatistics();
+          if (labels.updateExpiry(executionStatistics, scrapeNanos, ttlNanos)) {
+            heavyHitters.remove(labels.slot, labels);
+            labels.slot = null;
+            continue;
+          }
+          long requestCount = totalRequestCount(executionStatistics);
+          long newRequests = Math.max(0L, requestCount - labels.lastRequestCount);
+          labels.lastRequestCount = requestCount;
+          if (newRequests > 0 || (labels.slot == null && heavyHitters.size() < maxSeries)) {
+            labels.slot = heavyHitters.offer(labels, labels.slot, newRequests);
+          }
+          series++;
+        }
+      }
+
+      boolean limited = series > maxSeries;
+      int dropped = 0;
+      for (Map.Entry<String, ResourceStatistics> uriStatsEntry : uriStatistics.entrySet()) {
+        ConcurrentMap<ResourceMethod, MethodLabels> methodLabels = methodLabels(
+            uriStatsEntry.getKey());
+        for (ResourceMethod resourceMethod : uriStatsEntry.getValue()
+            .getResourceMethodStatistics().keySet()) {
+          MethodLabels labels = methodLabels(methodLabels, uriStatsEntry.getKey(),
+              resourceMethod);
+          labels.folded = limited && !labels.expired
+              && !heavyHitters.holds(labels.slot, labels);
+          if (labels.folded) {
+            dropped++;
+          }
+        }
+      }
+      droppedSeries = dropped;
+    }
+  }
+
+  /**
+   * Returns the number of requests in the unlimited time window, or in the largest window if
+   * Jersey is configured without it.
+   */
+  private static long totalRequestCount(ExecutionStatistics executionStatistics) {
+    return totalRequestCount(executionStatistics.getTimeWindowStatistics());
+  }
+
+  private static long totalRequestCount(Map<Long, TimeWindowStatistics> windows) {
+    TimeWindowStatistics unlimited = windows.get(0L);
+    if (unlimited != null) {
+      return unlimited.getRequestCount();
+    }
+    long largestWindow = -1L;
+    long requestCount = 0L;
+    for (Map.Entry<Long, TimeWindowStatistics> window : windows.entrySet()) {
+      if (window.getKey() > largestWindow) {
+        largestWindow = window.getKey();
+        requestCount = window.getValue().getRequestCount();
+      }
+    }
+    return requestCount;
+  }
+
+  private void forEachTimeWindow(Map<String, ResourceStatistics> uriStatistics, long scrapeNanos,
+      TimeWindowVisitor visitor) {
+    long scrape = scrapeCount.incrementAndGet();
+    long ttlNanos = idleTtlNanos;
+    int visitedMethods = 0;
+    Map<String, Map<Long, OtherWindow>> other = null;
+
     for (Map.Entry<String, ResourceStatistics> uriStatsEntry : uriStatistics.entrySet()) {
-      labelValues.add(uriStatsEntry.getKey());
+      ConcurrentMap<ResourceMethod, MethodLabels> methodLabels = methodLabels(
+          uriStatsEntry.getKey());
       Map<ResourceMethod, ResourceMethodStatistics> methodStatistics = uriStatsEntry.getValue()
           .getResourceMethodStatistics();
       for (Map.Entry<ResourceMethod, ResourceMethodStatistics> methodStatisticsEntry : methodStatistics
           .entrySet()) {
-        labelValues.add(methodStatisticsEntry.getKey().getHttpMethod());
-        Map<Long, TimeWindowStatistics> methodStatsIntervals = methodStatisticsEntry.getValue()
-            .getMethodStatistics().getTimeWindowStatistics();
-        for (Map.Entry<Long, TimeWindowStatistics> methodStatsIntervalEntry : methodStatsIntervals
-            .entrySet()) {
-          GaugeMetricFamily minRequestDuration = new GaugeMetricFamily(
-              "jersey_request_duration_min_seconds",
-              "Minimum request duration within interval",
-              labelNames);
-          minRequestDuration.addMetric(
-              Arrays.asList(uriStatsEntry.getKey(), methodStatisticsEntry.getKey().getHttpMethod(),
-                  Long.valueOf(methodStatsIntervalEntry.getKey() / 1000).toString()),
-              methodStatsIntervalEntry.getValue().getMinimumDuration() / 1000.0
-          );
-          metrics.add(minRequestDuration);
-
-          GaugeMetricFamily maxRequestDuration = new GaugeMetricFamily(
-              "jersey_request_duration_max_seconds",
-              "Maximum request duration within interval",
-              labelNames);
-          maxRequestDuration.addMetric(
-              Arrays.asList(uriStatsEntry.getKey(), methodStatisticsEntry.getKey().getHttpMethod(),
-                  Long.valueOf(methodStatsIntervalEntry.getKey() / 1000).toString()),
-              methodStatsIntervalEntry.getValue().getMaximumDuration() / 1000.0
-          );
-          metrics.add(maxRequestDuration);
-
-          GaugeMetricFamily avgRequestDuration = new GaugeMetricFamily(
-              "jersey_request_duration_avg_seconds",
-              "Average request duration within interval",
-              labelNames);
-          avgRequestDuration.addMetric(
-              Arrays.asList(uriStatsEntry.getKey(), methodStatisticsEntry.getKey().getHttpMethod(),
-                  Long.valueOf(methodStatsIntervalEntry.getKey() / 1000).toString()),
-              methodStatsIntervalEntry.getValue().getAverageDuration() / 1000.0
-          );
-          metrics.add(avgRequestDuration);
-
-          CounterMetricFamily requestCount = new CounterMetricFamily(
-              "jersey_request_count",
-              "Request count within interval",
-              labelNames
-          );
-          requestCount.addMetric(
-              Arrays.asList(uriStatsEntry.getKey(), methodStatisticsEntry.getKey().getHttpMethod(),
-                  Long.valueOf(methodStatsIntervalEntry.getKey() / 1000).toString()),
-              methodStatsIntervalEntry.getValue().getRequestCount()
-          );
-          metrics.add(requestCount);
-
-          GaugeMetricFamily requestsPerSecond = new GaugeMetricFamily(
-              "jersey_requests_per_second_total",
-              "Number of requests per second within interval",
-              labelNames);
-          requestsPerSecond.addMetric(
-              Arrays.asList(uriStatsEntry.getKey(), methodStatisticsEntry.getKey().getHttpMethod(),
-                  Long.valueOf(methodStatsIntervalEntry.getKey() / 1000).toString()),
-              methodStatsIntervalEntry.getValue().getRequestsPerSecond()
-          );
-          metrics.add(requestsPerSecond);
+        MethodLabels labels = methodLabels(methodLabels, uriStatsEntry.getKey(),
+            methodStatisticsEntry.getKey());
+        labels.lastScrape = scrape;
+        visitedMethods++;
+
+        ExecutionStatistics executionStatistics = methodStatisticsEntry.getValue()
+            .getMethodStatistics();
+        if (labels.updateExpiry(executionStatistics, scrapeNanos, ttlNanos)) {
+          labels.samples = null;
+          continue;
+        }
+        Map<Long, TimeWindowStatistics> methodStatsIntervals = executionStatistics
+            .getTimeWindowStatistics();
+        long requestCount = totalRequestCount(methodStatsIntervals);
+        if (labels.folded) {
+          if (other == null) {
+            other = new LinkedHashMap<>();
+          }
+          foldInto(other, labels.httpMethod, methodStatsIntervals);
+          continue;
+        }
+        visitor.visitMethod(labels, methodStatsIntervals, requestCount);
+      }
+    }
+    if (other != null) {
+      for (Map.Entry<String, Map<Long, OtherWindow>> otherMethod : other.entrySet()) {
+        MethodLabels labels = otherLabels.computeIfAbsent(otherMethod.getKey(),
+            httpMethod -> new MethodLabels(OTHER_URI, httpMethod));
+        for (OtherWindow window : otherMethod.getValue().values()) {
+          visitor.visit(labels.forWindow(window.timeWindow), window);
         }
       }
     }
+    if (visitedMethods < cachedMethodCount.get()) {
+      evictLabelsOlderThan(scrape);
+    }
+  }
 
-    return metrics;
+  private static void foldInto(Map<String, Map<Long, OtherWindow>> other, String httpMethod,
+      Map<Long, TimeWindowStatistics> methodStatsIntervals) {
+    Map<Long, OtherWindow> windows = other.get(httpMethod);
+    if (windows == null) {
+      windows = new LinkedHashMap<>();
+      other.put(httpMethod, windows);
+    }
+    for (Map.Entry<Long, TimeWindowStatistics> methodStatsIntervalEntry : methodStatsIntervals
+        .entrySet()) {
+      OtherWindow window = windows.get(methodStatsIntervalEntry.getKey());
+      if (window == null) {
+        window = new OtherWindow(methodStatsIntervalEntry.getKey());
+        windows.put(methodStatsIntervalEntry.getKey(), window);
+      }
+      window.add(methodStatsIntervalEntry.getValue());
+    }
+  }
+
+  private static MetricFamilySamples single(String name, Type type, String help, double value) {
+    return new MetricFamilySamples(name, type, help, Collections.singletonList(
+        new MetricFamilySamples.Sample(name, NO_LABELS, NO_LABELS, value)));
+  }
+
+  private List<String> exceptionMapperLabel(Class<?> mapperClass) {
+    List<String> labelValues = exceptionMapperLabels.get(mapperClass);
+    if (labelValues == null) {
+      String className = mapperClass.getCanonicalName();
+      labelValues = Collections.singletonList(className != null ? className : mapperClass.getName());
+      exceptionMapperLabels.putIfAbsent(mapperClass, labelValues);
+    }
+    return labelValues;
+  }
+
+  private List<String> responseCodeLabel(Integer responseCode) {
+    List<String> labelValues = responseCodeLabels.get(responseCode);
+    if (labelValues == null) {
+      labelValues = Collections.singletonList(responseCode.toString());
+      responseCodeLabels.putIfAbsent(responseCode, labelValues);
+    }
+    return labelValues;
+  }
+
+  private ConcurrentMap<ResourceMethod, MethodLabels> methodLabels(String uri) {
+    ConcurrentMap<ResourceMethod, MethodLabels> methodLabels = uriLabels.get(uri);
+    if (methodLabels == null) {
+      methodLabels = new ConcurrentHashMap<>();
+      ConcurrentMap<ResourceMethod, MethodLabels> existing = uriLabels
+          .putIfAbsent(uri, methodLabels);
+      if (existing != null) {
+        methodLabels = existing;
+      }
+    }
+    return methodLabels;
+  }
+
+  private MethodLabels methodLabels(ConcurrentMap<ResourceMethod, MethodLabels> methodLabels,
+      String uri, ResourceMethod resourceMethod) {
+    MethodLabels labels = methodLabels.get(resourceMethod);
+    if (labels != null) {
+      return labels;
+    }
+    labels = new MethodLabels(uri, resourceMethod.getHttpMethod());
+    MethodLabels existing = methodLabels.putIfAbsent(resourceMethod, labels);
+    if (existing != null) {
+      return existing;
+    }
+    cachedMethodCount.incrementAndGet();
+    return labels;
+  }
+
+  /**
+   * Drops label values of resource methods that were not reported in the given scrape, e.g. after
+   * the application has been redeployed with a different resource model.
+   */
+  private void evictLabelsOlderThan(long scrape) {
+    for (Iterator<ConcurrentMap<ResourceMethod, MethodLabels>> uris = uriLabels.values()
+        .iterator(); uris.hasNext(); ) {
+      ConcurrentMap<ResourceMethod, MethodLabels> methodLabels = uris.next();
+      for (Iterator<MethodLabels> methods = methodLabels.values().iterator(); methods.hasNext(); ) {
+        MethodLabels labels = methods.next();
+        if (labels.lastScrape < scrape) {
+          methods.remove();
+          cachedMethodCount.decrementAndGet();
+          if (heavyHitters != null) {
+            synchronized (heavyHitters) {
+              heavyHitters.remove(labels.slot, labels);
+            }
+          }
+        }
+      }
+      if (methodLabels.isEmpty()) {
+        uris.remove();
+      }
+    }
+  }
+
+  /**
+   * Duration per section, families, samples and allocated bytes of a single scrape.
+   */
+  private static final class ScrapeCost {
+
+    private static final List<String> SECTION_LABEL = Collections.singletonList("section");
+    private static final List<List<String>> SECTIONS = Collections.unmodifiableList(Arrays.asList(
+        Collections.singletonList("exception_mappers"), Collections.singletonList("responses"),
+        Collections.singletonList("uris")));
+
+    private final long[] durations = new long[SECTIONS.size()];
+    private final long startAllocatedBytes = AllocatedBytes.current();
+    private long sectionStart = System.nanoTime();
+    private int section;
+    private int families;
+    private int samples;
+
+    void endSection() {
+      long now = System.nanoTime();
+      durations[section++] = now - sectionStart;
+      sectionStart = now;
+    }
+
+    void count(int families, int samples) {
+      this.families += families;
+      this.samples += samples;
+    }
+
+    List<MetricFamilySamples> toMetrics() {
+      long allocatedBytes = AllocatedBytes.current() - startAllocatedBytes;
+      List<MetricFamilySamples> metrics = new ArrayList<>(4);
+      List<MetricFamilySamples.Sample> sectionSamples = new ArrayList<>(durations.length);
+      for (int i = 0; i < durations.length; i++) {
+        sectionSamples.add(new MetricFamilySamples.Sample(
+            "jersey_exporter_collect_duration_seconds", SECTION_LABEL, SECTIONS.get(i),
+            durations[i] / NANOSECONDS_PER_SECOND));
+      }
+      metrics.add(new MetricFamilySamples("jersey_exporter_collect_duration_seconds", Type.GAUGE,
+          "Duration of collecting Jersey statistics in the scrape, by section", sectionSamples));
+      metrics.add(single("jersey_exporter_families", Type.GAUGE,
+          "Number of Jersey metric families produced by the scrape", families));
+      metrics.add(single("jersey_exporter_samples", Type.GAUGE,
+          "Number of Jersey samples produced by the scrape", samples));
+      if (AllocatedBytes.SUPPORTED) {
+        metrics.add(single("jersey_exporter_allocated_bytes", Type.GAUGE,
+            "Bytes allocated by the scraping thread while collecting Jersey statistics",
+            allocatedBytes));
+      }
+      return metrics;
+    }
+  }
+
+  /**
+   * Allocation counter of the current thread, available on HotSpot based JVMs.
+   */
+  private static final class AllocatedBytes {
+
+    private static final boolean SUPPORTED = isSupported();
+
+    private static boolean isSupported() {
+      try {
+        return HotSpotThreads.isSupported();
+      } catch (LinkageError e) {
+        return false;
+      }
+    }
+
+    static long current() {
+      return SUPPORTED ? HotSpotThreads.allocatedBytes() : 0L;
+    }
+  }
+
+  /**
+   * Kept apart from {@link AllocatedBytes} so that {@code com.sun.management} is only resolved
+   * where it exists.
+   */
+  private static final class HotSpotThreads {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static boolean isSupported() {
+      return THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+    }
+
+    static long allocatedBytes() {
+      return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+
+  /**
+   * Writes the samples of one uri family at a time as the time windows are visited.
+   */
+  private static final class SampleWriter implements TimeWindowVisitor {
+
+    private final ExpositionWriter writer;
+    private UriMetric uriMetric;
+    private int samples;
+
+    SampleWriter(ExpositionWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void visit(List<String> labelValues, TimeWindowStatistics stats) {
+      writer.writeSample(uriMetric.name, URI_LABELS, labelValues, uriMetric.value(stats));
+      samples++;
+    }
+  }
+
+  private interface TimeWindowVisitor {
+
+    void visit(List<String> labelValues, TimeWindowStatistics stats);
+
+    default void visitMethod(MethodLabels labels, Map<Long, TimeWindowStatistics> windows,
+        long requestCount) {
+      for (Map.Entry<Long, TimeWindowStatistics> window : windows.entrySet()) {
+        visit(labels.forWindow(window.getKey()), window.getValue());
+      }
+    }
+  }
+
+  /**
+   * Samples of a resource method as computed in a previous scrape. They are reused as long as the
+   * method has no new requests and none of its limited time windows held any requests when they
+   * were computed: its statistics cannot change then, except for the rate of the unlimited window,
+   * which is recomputed. Methods with requests in any limited window are recomputed on every
+   * scrape until the requests have aged out of all windows.
+   */
+  private static final class MethodSamples {
+
+    private static final UriMetric[] URI_METRICS = UriMetric.values();
+
+    private final long requestCount;
+    private final boolean idle;
+    private final int unlimitedRateIndex;
+
+    /**
+     * Samples by time window, then by {@link UriMetric}.
+     */
+    private final MetricFamilySamples.Sample[] samples;
+
+    private MethodSamples(long requestCount, boolean idle, int unlimitedRateIndex,
+        MetricFamilySamples.Sample[] samples) {
+      this.requestCount = requestCount;
+      this.idle = idle;
+      this.unlimitedRateIndex = unlimitedRateIndex;
+      this.samples = samples;
+    }
+
+    static MethodSamples compute(MethodLabels labels, Map<Long, TimeWindowStatistics> windows,
+        long requestCount) {
+      MetricFamilySamples.Sample[] samples =
+          new MetricFamilySamples.Sample[windows.size() * URI_METRICS.length];
+      boolean idle = true;
+      int unlimitedRateIndex = -1;
+      int index = 0;
+      for (Map.Entry<Long, TimeWindowStatistics> window : windows.entrySet()) {
+        TimeWindowStatistics stats = window.getValue();
+        if (window.getKey() == 0L) {
+          unlimitedRateIndex = index + UriMetric.REQUESTS_PER_SECOND.ordinal();
+        } else if (stats.getRequestCount() > 0) {
+          idle = false;
+        }
+        List<String> labelValues = labels.forWindow(window.getKey());
+        for (UriMetric uriMetric : URI_METRICS) {
+          samples[index++] = new MetricFamilySamples.Sample(uriMetric.name, URI_LABELS,
+              labelValues, uriMetric.value(stats));
+        }
+      }
+      return new MethodSamples(requestCount, idle, unlimitedRateIndex, samples);
+    }
+
+    boolean isReusable(long requestCount, int windowCount) {
+      return idle && this.requestCount == requestCount
+          && samples.length == windowCount * URI_METRICS.length;
+    }
+
+    void addTo(List<List<MetricFamilySamples.Sample>> families) {
+      for (int i = 0; i < samples.length; i++) {
+        families.get(i % URI_METRICS.length).add(samples[i]);
+      }
+    }
+
+    void reuse(List<List<MetricFamilySamples.Sample>> families,
+        Map<Long, TimeWindowStatistics> windows) {
+      for (int i = 0; i < samples.length; i++) {
+        MetricFamilySamples.Sample sample = samples[i];
+        if (i == unlimitedRateIndex) {
+          sample = new MetricFamilySamples.Sample(sample.name, URI_LABELS, sample.labelValues,
+              UriMetric.REQUESTS_PER_SECOND.value(windows.get(0L)));
+        }
+        families.get(i % URI_METRICS.length).add(sample);
+      }
+    }
+  }
+
+  /**
+   * Families exported for every (uri, resource method, time window) tuple.
+   */
+  private enum UriMetric {
+    MIN_DURATION("jersey_request_duration_min_seconds", Type.GAUGE,
+        "Minimum request duration within interval") {
+      @Override
+      double value(TimeWindowStatistics stats) {
+        return stats.getMinimumDuration() / MILLISECONDS_PER_SECOND;
+      }
+    },
+    MAX_DURATION("jersey_request_duration_max_seconds", Type.GAUGE,
+        "Maximum request duration within interval") {
+      @Override
+      double value(TimeWindowStatistics stats) {
+        return stats.getMaximumDuration() / MILLISECONDS_PER_SECOND;
+      }
+    },
+    AVG_DURATION("jersey_request_duration_avg_seconds", Type.GAUGE,
+        "Average request duration within interval") {
+      @Override
+      double value(TimeWindowStatistics stats) {
+        return stats.getAverageDuration() / MILLISECONDS_PER_SECOND;
+      }
+    },
+    REQUEST_COUNT("jersey_request_count", Type.COUNTER, "Request count within interval") {
+      @Override
+      double value(TimeWindowStatistics stats) {
+        return stats.getRequestCount();
+      }
+    },
+    REQUESTS_PER_SECOND("jersey_requests_per_second_total", Type.GAUGE,
+        "Number of requests per second within interval") {
+      @Override
+      double value(TimeWindowStatistics stats) {
+        return stats.getRequestsPerSecond();
+      }
+    };
+
+    private final String name;
+    private final Type type;
+    private final String help;
+
+    UriMetric(String name, Type type, String help) {
+      this.name = name;
+      this.type = type;
+      this.help = help;
+    }
+
+    abstract double value(TimeWindowStatistics stats);
+  }
+
+  /**
+   * Label values of a single resource method, one list per time window. Jersey reports only a
+   * handful of time windows, so they are kept in a copy-on-write array and searched linearly.
+   */
+  private static final class MethodLabels {
+
+    private final String uri;
+    private final String httpMethod;
+    private volatile WindowLabels[] windows = new WindowLabels[0];
+    private volatile long lastScrape;
+
+    /**
+     * Incremental collection state: the samples of the latest scrape, and the activity and time
+     * when the method last had new requests.
+     */
+    private volatile MethodSamples samples;
+    private volatile long lastActivity = Long.MIN_VALUE;
+    private volatile long lastActiveNanos;
+    private volatile boolean expired;
+
+    /**
+     * Heavy-hitters state, guarded by the heavy-hitters table.
+     */
+    private long lastRequestCount;
+    private SpaceSaving.Slot<MethodLabels> slot;
+    private volatile boolean folded;
+
+    MethodLabels(String uri, String httpMethod) {
+      this.uri = uri;
+      this.httpMethod = httpMethod;
+    }
+
+    /**
+     * Records whether the method has had new requests, told by the start time of its latest
+     * request or, where that is not reported, by its request count, and returns whether it has
+     * been idle for longer than the given time, if any.
+     */
+    boolean updateExpiry(ExecutionStatistics executionStatistics, long scrapeNanos,
+        long ttlNanos) {
+      if (ttlNanos <= 0) {
+        return false;
+      }
+      Date lastStartTime = executionStatistics.getLastStartTime();
+      long activity = lastStartTime != null ? lastStartTime.getTime()
+          : totalRequestCount(executionStatistics);
+      if (activity != lastActivity) {
+        lastActivity = activity;
+        lastActiveNanos = scrapeNanos;
+      }
+      expired = scrapeNanos - lastActiveNanos > ttlNanos;
+      return expired;
+    }
+
+    List<String> forWindow(long window) {
+      WindowLabels[] current = windows;
+      for (WindowLabels labels : current) {
+        if (labels.window == window) {
+          return labels.values;
+        }
+      }
+      return addWindow(window);
+    }
+
+    private synchronized List<String> addWindow(long window) {
+      WindowLabels[] current = windows;
+      for (WindowLabels labels : current) {
+        if (labels.window == window) {
+          return labels.values;
+        }
+      }
+      WindowLabels[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = new WindowLabels(window, Collections.unmodifiableList(
+          Arrays.asList(uri, httpMethod, Long.toString(window / 1000))));
+      windows = updated;
+      return updated[current.length].values;
+    }
+  }
+
+  /**
+   * Time window statistics of all resource methods folded into the {@code __other__} series.
+   */
+  private static final class OtherWindow implements TimeWindowStatistics {
+
+    private final long timeWindow;
+    private double requestsPerSecond;
+    private long minimumDuration = Long.MAX_VALUE;
+    private long maximumDuration;
+    private double totalDuration;
+    private long requestCount;
+
+    OtherWindow(long timeWindow) {
+      this.timeWindow = timeWindow;
+    }
+
+    void add(TimeWindowStatistics stats) {
+      long count = stats.getRequestCount();
+      requestsPerSecond += stats.getRequestsPerSecond();
+      if (count > 0) {
+        minimumDuration = Math.min(minimumDuration, stats.getMinimumDuration());
+        maximumDuration = Math.max(maximumDuration, stats.getMaximumDuration());
+        totalDuration += (double) stats.getAverageDuration() * count;
+      }
+      requestCount += count;
+    }
+
+    @Override
+    public long getTimeWindow() {
+      return timeWindow;
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+      return requestsPerSecond;
+    }
+
+    @Override
+    public long getMinimumDuration() {
+      return requestCount > 0 ? minimumDuration : 0L;
+    }
+
+    @Override
+    public long getMaximumDuration() {
+      return maximumDuration;
+    }
+
+    @Override
+    public long getAverageDuration() {
+      return requestCount > 0 ? Math.round(totalDuration / requestCount) : 0L;
+    }
+
+    @Override
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public TimeWindowStatistics snapshot() {
+      return this;
+    }
+  }
+
+  private static final class WindowLabels {
+
+    private final long window;
+    private final List<String> values;
+
+    WindowLabels(long window, List<String> values) {
+      this.window = window;
+      this.values = values;
+    }
   }
 
 }
@@ -0,0 +1,93 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.glassfish.jersey.server.monitoring.MonitoringStatistics;
+import org.glassfish.jersey.server.monitoring.MonitoringStatisticsListener;
+
+/**
+ * Collect metrics from Jersey framework from snapshots precomputed whenever Jersey publishes new
+ * monitoring statistics.
+ * <p>
+ * Jersey calls {@link #onStatistics(MonitoringStatistics)} periodically on its own thread; the
+ * samples are built there once and published as an immutable snapshot, so {@link #collect()} does
+ * no work proportional to the number of resources no matter how many scrapes are served. The
+ * same instance has to be registered both with the application and with the collector registry:
+ * <pre>
+ * JerseyStatisticsSnapshotCollector collector = new JerseyStatisticsSnapshotCollector().register();
+ * resourceConfig.register(collector);
+ * </pre>
+ * Statistics collection has to be enabled as for {@link JerseyStatisticsCollector}. The age of
+ * the snapshot is exported as {@code jersey_statistics_snapshot_age_seconds}; nothing is exported
+ * until Jersey has published the first statistics.
+ * </p>
+ */
+public class JerseyStatisticsSnapshotCollector extends Collector implements
+    MonitoringStatisticsListener {
+
+  private static final List<String> NO_LABELS = Collections.emptyList();
+
+  private final int maxSeries;
+  private volatile Snapshot snapshot;
+  private JerseyStatisticsCollector sampler;
+
+  /**
+   * Creates a snapshot collector exporting uri statistics of all resource methods.
+   */
+  public JerseyStatisticsSnapshotCollector() {
+    this(0);
+  }
+
+  /**
+   * Creates a snapshot collector exporting uri statistics for at most the given number of (uri,
+   * resource method) pairs, see {@link JerseyStatisticsCollector#JerseyStatisticsCollector(
+   * MonitoringStatistics, int)}.
+   *
+   * @param maxSeries The maximum number of (uri, resource method) pairs to export, or 0 for no
+   * limit
+   */
+  public JerseyStatisticsSnapshotCollector(int maxSeries) {
+    if (maxSeries < 0) {
+      throw new IllegalArgumentException("Maximum number of series cannot be negative");
+    }
+    this.maxSeries = maxSeries;
+  }
+
+  @Override
+  public synchronized void onStatistics(MonitoringStatistics statistics) {
+    if (sampler == null) {
+      sampler = new JerseyStatisticsCollector(statistics, maxSeries);
+    }
+    snapshot = new Snapshot(Collections.unmodifiableList(sampler.collect(statistics)),
+        System.currentTimeMillis());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    Snapshot current = snapshot;
+    if (current == null) {
+      return Collections.emptyList();
+    }
+    List<MetricFamilySamples> metrics = new ArrayList<>(current.metrics.size() + 1);
+    metrics.addAll(current.metrics);
+    metrics.add(new MetricFamilySamples("jersey_statistics_snapshot_age_seconds", Type.GAUGE,
+        "Time since the exported Jersey statistics were computed",
+        Collections.singletonList(new MetricFamilySamples.Sample(
+            "jersey_statistics_snapshot_age_seconds", NO_LABELS, NO_LABELS,
+            (System.currentTimeMillis() - current.timestampMillis) / MILLISECONDS_PER_SECOND))));
+    return metrics;
+  }
+
+  private static final class Snapshot {
+
+    private final List<MetricFamilySamples> metrics;
+    private final long timestampMillis;
+
+    Snapshot(List<MetricFamilySamples> metrics, long timestampMillis) {
+      this.metrics = metrics;
+      this.timestampMillis = timestampMillis;
+    }
+  }
+}
@@ -0,0 +1,317 @@
+package prometheus.exporter;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the metrics of a registry into a memory-mapped file, for hosts where scraping the
+ * application over HTTP is not possible or not wanted.
+ * <p>
+ * Usage example:
+ * <pre>
+ * new JerseyStatisticsCollector(monitoringStatistics).register();
+ * MappedMetricsExporter exporter = new MappedMetricsExporter(Paths.get("/var/run/app/metrics.bin"))
+ *     .start(15, TimeUnit.SECONDS);
+ * </pre>
+ * The file is read with {@link MappedMetricsReader}, e.g. from a cron job writing node_exporter
+ * textfile collector output.
+ * </p>
+ * <p>
+ * The file starts with a fixed header, followed by the layout (metric family names, help texts,
+ * sample names and labels) and then one 8-byte value per sample at a stable offset. The series
+ * published at every position is kept, so that as long as the registry returns the same series in
+ * the same order, a publication compares each sample with the series at its position, mostly the
+ * same instances, and stores its value. Series that moved are looked up by name and label values;
+ * the layout is only encoded again when series appear or disappear. The stores are bracketed by
+ * a sequence number that is odd while a write is in progress, so that readers can detect and
+ * retry torn reads (a seqlock). There is a single writer; {@link #publish()} is synchronized.
+ * Collecting the registry is still done on every publication, as for a scrape.
+ * </p>
+ * <p>
+ * The file is never truncated while it may be mapped, which would crash readers: it is created
+ * under a temporary name and renamed into place, and only grows afterwards.
+ * </p>
+ */
+public class MappedMetricsExporter implements Closeable {
+
+  static final int MAGIC = 0x4a52534d;
+  static final int FORMAT_VERSION = 1;
+  static final int SEQUENCE_OFFSET = 8;
+  static final int LAYOUT_LENGTH_OFFSET = 16;
+  static final int SAMPLE_COUNT_OFFSET = 20;
+  static final int HEADER_LENGTH = 24;
+  static final byte FAMILY_ENTRY = 1;
+  static final byte SAMPLE_ENTRY = 2;
+
+  private static final Logger LOGGER = Logger.getLogger(MappedMetricsExporter.class.getName());
+  private static final int INITIAL_CAPACITY = 1 << 20;
+
+  private final Path file;
+  private final CollectorRegistry registry;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private ScheduledExecutorService scheduler;
+  private long sequence;
+  private boolean closed;
+
+  /**
+   * Offsets of the values in the current layout, by sample name and label values, and the number
+   * of series in it. Only looked up for series that are not at the position they had in the
+   * previous publication.
+   */
+  private Map<String, Map<List<String>, Integer>> offsets = new HashMap<>();
+  private int seriesCount;
+
+  /**
+   * Samples of the previous publication and the offsets of their values, and the values of the
+   * current publication, in collection order.
+   */
+  private MetricFamilySamples.Sample[] publishedSamples = new MetricFamilySamples.Sample[0];
+  private int[] sampleOffsets = new int[0];
+  private double[] values = new double[0];
+
+  /**
+   * Creates an exporter publishing the default registry to the given file.
+   *
+   * @param file The file to map, created if it does not exist
+   */
+  public MappedMetricsExporter(Path file) throws IOException {
+    this(file, CollectorRegistry.defaultRegistry);
+  }
+
+  /**
+   * Creates an exporter publishing the given registry to the given file.
+   *
+   * @param file The file to map, created if it does not exist
+   * @param registry The registry to publish
+   */
+  public MappedMetricsExporter(Path file, CollectorRegistry registry) throws IOException {
+    if (file == null || registry == null) {
+      throw new IllegalArgumentException("File and collector registry cannot be null");
+    }
+    this.file = file;
+    this.registry = registry;
+    MemoryFences.ensureAvailable();
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      map(INITIAL_CAPACITY);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, FORMAT_VERSION);
+      buffer.putLong(SEQUENCE_OFFSET, 0L);
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Publishes the registry periodically from a daemon thread until {@link #close()} is called.
+   */
+  public synchronized MappedMetricsExporter start(long period, TimeUnit unit) {
+    ensureOpen();
+    if (scheduler != null) {
+      throw new IllegalStateException("Exporter already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jersey-exporter-mapped-file");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleAtFixedRate(() -> {
+      try {
+        publish();
+      } catch (IOException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Could not publish metrics to " + file, e);
+      }
+    }, 0, period, unit);
+    return this;
+  }
+
+  /**
+   * Collects the registry and publishes the samples to the file.
+   *
+   * @throws IllegalStateException if the exporter is closed
+   */
+  public synchronized void publish() throws IOException {
+    ensureOpen();
+    List<MetricFamilySamples> families = new ArrayList<>();
+    Enumeration<MetricFamilySamples> enumeration = registry.metricFamilySamples();
+    int sampleCount = 0;
+    while (enumeration.hasMoreElements()) {
+      MetricFamilySamples family = enumeration.nextElement();
+      families.add(family);
+      sampleCount += family.samples.size();
+    }
+    if (values.length < sampleCount) {
+      int length = Math.max(sampleCount, values.length * 2);
+      values = new double[length];
+      sampleOffsets = new int[length];
+      publishedSamples = new MetricFamilySamples.Sample[length];
+    }
+
+    boolean relayout = !resolveOffsets(families, sampleCount);
+    byte[] layoutBytes = null;
+    if (relayout) {
+      layoutBytes = encodeLayout(families);
+      int valuesOffset = (HEADER_LENGTH + layoutBytes.length + 7) & ~7;
+      int required = valuesOffset + 8 * sampleCount;
+      if (required > buffer.capacity()) {
+        map(Math.max(required, buffer.capacity() * 2));
+      }
+      layOut(families, valuesOffset);
+    }
+
+    // Seqlock: the sequence is odd while the values or the layout are being written. The store
+    // fences keep the stores of the data from being reordered with those of the sequence, also on
+    // CPUs with a weaker memory model than x86.
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    MemoryFences.storeFence();
+    if (relayout) {
+      buffer.position(HEADER_LENGTH);
+      buffer.put(layoutBytes);
+      buffer.putInt(LAYOUT_LENGTH_OFFSET, layoutBytes.length);
+      buffer.putInt(SAMPLE_COUNT_OFFSET, sampleCount);
+    }
+    for (int sample = 0; sample < sampleCount; sample++) {
+      buffer.putDouble(sampleOffsets[sample], values[sample]);
+    }
+    MemoryFences.storeFence();
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    if (channel != null) {
+      buffer.force();
+      buffer = null;
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Exporter is closed");
+    }
+  }
+
+  /**
+   * Maps the file with the given size. The new mapping shows the same pages as the previous one,
+   * so the header and the current layout are kept.
+   */
+  private void map(int capacity) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  /**
+   * Finds the offset and takes the value of every sample in the current layout. A sample of the
+   * same series as the sample at its position in the previous publication keeps its offset, which
+   * costs an identity comparison where the collector reuses its names and label values. Returns
+   * false if the layout has to be rebuilt because samples were added or removed.
+   */
+  private boolean resolveOffsets(List<MetricFamilySamples> families, int sampleCount) {
+    if (sampleCount != seriesCount) {
+      return false;
+    }
+    int i = 0;
+    for (MetricFamilySamples family : families) {
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        MetricFamilySamples.Sample published = publishedSamples[i];
+        if (!sample.name.equals(published.name)
+            || !sample.labelValues.equals(published.labelValues)) {
+          Map<List<String>, Integer> series = offsets.get(sample.name);
+          Integer offset = series != null ? series.get(sample.labelValues) : null;
+          if (offset == null) {
+            return false;
+          }
+          sampleOffsets[i] = offset;
+        }
+        publishedSamples[i] = sample;
+        values[i++] = sample.value;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Assigns consecutive offsets to the samples, in the order of the encoded layout.
+   */
+  private void layOut(List<MetricFamilySamples> families, int valuesOffset) {
+    offsets = new HashMap<>();
+    int i = 0;
+    for (MetricFamilySamples family : families) {
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        Map<List<String>, Integer> series = offsets.get(sample.name);
+        if (series == null) {
+          series = new HashMap<>();
+          offsets.put(sample.name, series);
+        }
+        int offset = valuesOffset + 8 * i;
+        series.put(sample.labelValues, offset);
+        publishedSamples[i] = sample;
+        sampleOffsets[i] = offset;
+        values[i++] = sample.value;
+      }
+    }
+    seriesCount = i;
+  }
+
+  private static byte[] encodeLayout(List<MetricFamilySamples> families) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (MetricFamilySamples family : families) {
+      out.writeByte(FAMILY_ENTRY);
+      writeString(out, family.name);
+      writeString(out, family.type.name());
+      writeString(out, family.help);
+      out.writeInt(family.samples.size());
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        out.writeByte(SAMPLE_ENTRY);
+        writeString(out, sample.name);
+        out.writeInt(sample.labelNames.size());
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+          writeString(out, sample.labelNames.get(i));
+          writeString(out, sample.labelValues.get(i));
+        }
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
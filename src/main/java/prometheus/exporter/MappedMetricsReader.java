@@ -0,0 +1,189 @@
+package prometheus.exporter;
+
+import static prometheus.exporter.MappedMetricsExporter.FAMILY_ENTRY;
+import static prometheus.exporter.MappedMetricsExporter.FORMAT_VERSION;
+import static prometheus.exporter.MappedMetricsExporter.HEADER_LENGTH;
+import static prometheus.exporter.MappedMetricsExporter.LAYOUT_LENGTH_OFFSET;
+import static prometheus.exporter.MappedMetricsExporter.MAGIC;
+import static prometheus.exporter.MappedMetricsExporter.SAMPLE_COUNT_OFFSET;
+import static prometheus.exporter.MappedMetricsExporter.SAMPLE_ENTRY;
+import static prometheus.exporter.MappedMetricsExporter.SEQUENCE_OFFSET;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a file written by {@link MappedMetricsExporter} and renders it in the Prometheus text
+ * exposition format.
+ * <p>
+ * Usage example, printing the metrics to standard output:
+ * <pre>
+ * java -cp ... prometheus.exporter.MappedMetricsReader metrics.bin
+ * </pre>
+ * With a second argument the output is written to that file instead, atomically via a temporary
+ * file and a rename, as expected by the node_exporter textfile collector:
+ * <pre>
+ * java -cp ... prometheus.exporter.MappedMetricsReader metrics.bin /var/lib/node_exporter/app.prom
+ * </pre>
+ * </p>
+ */
+public final class MappedMetricsReader {
+
+  /**
+   * How long to retry while the exporter is writing, and the longest pause between two attempts.
+   * A publication only stores the values, and the layout if it changed, so the timeout is only
+   * reached if the exporter is stuck in the middle of one.
+   */
+  private static final long READ_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int SPINS = 100;
+
+  private MappedMetricsReader() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: MappedMetricsReader <metrics file> [<textfile>]");
+      System.exit(2);
+    }
+    List<MetricFamilySamples> families = read(Paths.get(args[0]));
+    if (args.length == 1) {
+      write(families, System.out);
+      System.out.flush();
+      return;
+    }
+    Path target = Paths.get(args[1]);
+    Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temporary)) {
+      write(families, out);
+    }
+    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Writes the families in the text exposition format, version 0.0.4.
+   */
+  public static void write(List<MetricFamilySamples> families, OutputStream out) {
+    ExpositionWriter writer = new ExpositionWriter(false).reset(out);
+    for (MetricFamilySamples family : families) {
+      writer.writeFamily(family);
+    }
+    writer.finish();
+  }
+
+  /**
+   * Reads a consistent snapshot of the metrics in the given file, retrying while the exporter is
+   * writing to it: first immediately, then with pauses growing up to a millisecond.
+   *
+   * @throws IOException if the file cannot be read, or no consistent snapshot could be read within
+   * five seconds
+   */
+  public static List<MetricFamilySamples> read(Path file) throws IOException {
+    MemoryFences.ensureAvailable();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+        throw new IOException(file + " is not a metrics file");
+      }
+      if (buffer.getInt(4) != FORMAT_VERSION) {
+        throw new IOException("Unsupported metrics file version " + buffer.getInt(4));
+      }
+      long deadline = System.nanoTime() + READ_TIMEOUT_NANOS;
+      for (int attempt = 0; attempt == 0 || System.nanoTime() - deadline < 0; attempt++) {
+        if (attempt > 0) {
+          backOff(attempt);
+        }
+        long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0) {
+          continue;
+        }
+        MemoryFences.loadFence();
+        byte[] layout;
+        double[] values;
+        try {
+          layout = new byte[buffer.getInt(LAYOUT_LENGTH_OFFSET)];
+          values = new double[buffer.getInt(SAMPLE_COUNT_OFFSET)];
+          ByteBuffer copy = buffer.duplicate();
+          copy.position(HEADER_LENGTH);
+          copy.get(layout);
+          copy.position((HEADER_LENGTH + layout.length + 7) & ~7);
+          copy.asDoubleBuffer().get(values);
+        } catch (IllegalArgumentException | BufferUnderflowException
+            | NegativeArraySizeException e) {
+          // Torn header, or the file has grown beyond the mapping.
+          buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          continue;
+        }
+        MemoryFences.loadFence();
+        if (buffer.getLong(SEQUENCE_OFFSET) == sequence) {
+          return decode(ByteBuffer.wrap(layout), values);
+        }
+      }
+      throw new IOException("Could not read a consistent snapshot of " + file);
+    }
+  }
+
+  private static void backOff(int attempt) {
+    if (attempt < SPINS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(Math.min(MAX_BACKOFF_NANOS, 1000L << Math.min(attempt - SPINS, 20)));
+    }
+  }
+
+  private static List<MetricFamilySamples> decode(ByteBuffer layout, double[] values)
+      throws IOException {
+    List<MetricFamilySamples> families = new ArrayList<>();
+    int value = 0;
+    while (layout.hasRemaining()) {
+      if (layout.get() != FAMILY_ENTRY) {
+        throw new IOException("Corrupt metrics file, expected a metric family");
+      }
+      String name = readString(layout);
+      Type type = Type.valueOf(readString(layout));
+      String help = readString(layout);
+      int sampleCount = layout.getInt();
+      List<MetricFamilySamples.Sample> samples = new ArrayList<>(sampleCount);
+      for (int s = 0; s < sampleCount; s++) {
+        if (layout.get() != SAMPLE_ENTRY) {
+          throw new IOException("Corrupt metrics file, expected a sample");
+        }
+        String sampleName = readString(layout);
+        int labelCount = layout.getInt();
+        List<String> labelNames = new ArrayList<>(labelCount);
+        List<String> labelValues = new ArrayList<>(labelCount);
+        for (int l = 0; l < labelCount; l++) {
+          labelNames.add(readString(layout));
+          labelValues.add(readString(layout));
+        }
+        samples.add(new MetricFamilySamples.Sample(sampleName, labelNames, labelValues,
+            values[value++]));
+      }
+      families.add(new MetricFamilySamples(name, type, help, samples));
+    }
+    return families;
+  }
+
+  private static String readString(ByteBuffer layout) {
+    byte[] bytes = new byte[layout.getInt()];
+    layout.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,101 @@
+package prometheus.exporter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data shared through memory-mapped files, which the Java memory model does not
+ * cover. They are the release and acquire fences of {@code java.lang.invoke.VarHandle} where it
+ * exists (Java 9 and later), and otherwise the store and load fences of {@code sun.misc.Unsafe}.
+ * Both are looked up reflectively so that the build does not depend on either.
+ * <p>
+ * Only the ordering of stores with stores and of loads with loads is promised, which is all a
+ * seqlock needs and what both variants provide. On Java 8, {@code Unsafe.storeFence} is
+ * documented to also order earlier stores with later loads, but HotSpot implements it as a
+ * release fence that does not, so no caller may rely on that.
+ * </p>
+ */
+final class MemoryFences {
+
+  private static final MethodHandle STORE_FENCE;
+  private static final MethodHandle LOAD_FENCE;
+  private static final Throwable UNAVAILABLE;
+
+  static {
+    MethodHandle[] fences = null;
+    Throwable unavailable = null;
+    try {
+      fences = varHandleFences();
+    } catch (ReflectiveOperationException e) {
+      try {
+        fences = unsafeFences();
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        e2.addSuppressed(e);
+        unavailable = e2;
+      }
+    }
+    STORE_FENCE = fences != null ? fences[0] : null;
+    LOAD_FENCE = fences != null ? fences[1] : null;
+    UNAVAILABLE = unavailable;
+  }
+
+  private MemoryFences() {
+  }
+
+  /**
+   * Fails if this JVM offers neither of the fences, so that exporters and readers can refuse to
+   * start rather than fail on their first publication.
+   *
+   * @throws UnsupportedOperationException if the fences are not available
+   */
+  static void ensureAvailable() {
+    if (UNAVAILABLE != null) {
+      throw new UnsupportedOperationException(
+          "Memory fences are not available on this JVM, neither through "
+              + "java.lang.invoke.VarHandle nor through sun.misc.Unsafe", UNAVAILABLE);
+    }
+  }
+
+  /**
+   * Keeps stores before the fence from being reordered with stores after it.
+   */
+  static void storeFence() {
+    try {
+      STORE_FENCE.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Store fence failed", e);
+    }
+  }
+
+  /**
+   * Keeps loads before the fence from being reordered with loads after it.
+   */
+  static void loadFence() {
+    try {
+      LOAD_FENCE.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Load fence failed", e);
+    }
+  }
+
+  private static MethodHandle[] varHandleFences() throws ReflectiveOperationException {
+    Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+    MethodType type = MethodType.methodType(void.class);
+    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    return new MethodHandle[]{lookup.findStatic(varHandle, "releaseFence", type),
+        lookup.findStatic(varHandle, "acquireFence", type)};
+  }
+
+  private static MethodHandle[] unsafeFences() throws ReflectiveOperationException {
+    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+    theUnsafe.setAccessible(true);
+    Object unsafe = theUnsafe.get(null);
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    return new MethodHandle[]{
+        lookup.unreflect(unsafeClass.getMethod("storeFence")).bindTo(unsafe),
+        lookup.unreflect(unsafeClass.getMethod("loadFence")).bindTo(unsafe)};
+  }
+}
@@ -0,0 +1,107 @@
+package prometheus.exporter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.uri.UriTemplate;
+
+/**
+ * Per-resource-method cache of metric children (or any other per-method state) for the request
+ * listeners.
+ * <p>
+ * The URI template label is derived from the matched templates only the first time a resource
+ * method is seen; afterwards a request costs a single identity-hashed map lookup keyed by the
+ * {@link ResourceMethod}, with no string building or string-keyed lookups.
+ * </p>
+ *
+ * @param <T> type of the cached per-method value
+ */
+final class ResourceMethodChildren<T> {
+
+  private final ConcurrentMap<ResourceMethod, T> children = new ConcurrentHashMap<>();
+  private final Factory<T> factory;
+
+  /**
+   * @param factory creates the value for a resource method given its URI template and HTTP
+   * method
+   */
+  ResourceMethodChildren(BiFunction<String, String, T> factory) {
+    this((Factory<T>) (uri, resourceMethod) -> factory
+        .apply(uri, resourceMethod.getHttpMethod()));
+  }
+
+  private ResourceMethodChildren(Factory<T> factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Creates a cache whose values are created from the URI template and the resource method
+   * itself, e.g. to look at its consumed and produced media types.
+   */
+  static <T> ResourceMethodChildren<T> forResourceMethods(Factory<T> factory) {
+    return new ResourceMethodChildren<>(factory);
+  }
+
+  /**
+   * Returns the value for the resource method matched by the request, or {@code null} if no
+   * resource method has been matched (yet).
+   */
+  T get(ExtendedUriInfo uriInfo) {
+    if (uriInfo == null) {
+      return null;
+    }
+    ResourceMethod resourceMethod = uriInfo.getMatchedResourceMethod();
+    if (resourceMethod == null) {
+      return null;
+    }
+    T child = children.get(resourceMethod);
+    if (child == null) {
+      child = factory.create(uriTemplate(uriInfo), resourceMethod);
+      T existing = children.putIfAbsent(resourceMethod, child);
+      if (existing != null) {
+        child = existing;
+      }
+    }
+    return child;
+  }
+
+  /**
+   * Returns a live view of the values of all resource methods seen so far.
+   */
+  Collection<T> values() {
+    return children.values();
+  }
+
+  /**
+   * Concatenates the templates matched for the request, from the application root down to the
+   * resource method, e.g. {@code /users/{id}/orders}.
+   */
+  static String uriTemplate(ExtendedUriInfo uriInfo) {
+    List<UriTemplate> templates = uriInfo.getMatchedTemplates();
+    StringBuilder uri = new StringBuilder();
+    for (int i = templates.size() - 1; i >= 0; i--) {
+      String template = templates.get(i).getTemplate();
+      int start = 0;
+      int end = template.length();
+      while (start < end && template.charAt(start) == '/') {
+        start++;
+      }
+      while (end > start && template.charAt(end - 1) == '/') {
+        end--;
+      }
+      if (start < end) {
+        uri.append('/').append(template, start, end);
+      }
+    }
+    return uri.length() == 0 ? "/" : uri.toString();
+  }
+
+  interface Factory<T> {
+
+    T create(String uri, ResourceMethod resourceMethod);
+  }
+}
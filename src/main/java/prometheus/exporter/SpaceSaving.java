@@ -0,0 +1,151 @@
+package prometheus.exporter;
+
+/**
+ * Bounded heavy-hitters table implementing the Space-Saving algorithm (Metwally et al.).
+ * <p>
+ * At most {@code capacity} keys are tracked. Offering an untracked key when the table is full
+ * replaces the key with the smallest count, which the new key inherits as its count and error.
+ * Every key whose total weight exceeds {@code 1 / capacity} of the total offered weight is
+ * guaranteed to be tracked. Tracked keys are kept in a binary min-heap, so an offer costs
+ * {@code O(log capacity)}.
+ * </p>
+ * <p>
+ * Instead of a key-to-position map the caller keeps the {@link Slot} returned by
+ * {@link #offer(Object, Slot, long)} next to its key and passes it back on the next offer. A slot
+ * that has since been taken over by another key is recognized by {@link #holds(Slot, Object)}.
+ * Instances are not thread-safe.
+ * </p>
+ *
+ * @param <K> type of the tracked keys, compared by identity
+ */
+final class SpaceSaving<K> {
+
+  private final Slot<K>[] heap;
+  private int size;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  SpaceSaving(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.heap = new Slot[capacity];
+  }
+
+  /**
+   * Adds the given weight to the key.
+   *
+   * @param key The key to count
+   * @param slot The slot last returned for this key, or {@code null}
+   * @param weight The weight to add, must not be negative
+   * @return the slot now holding the key
+   */
+  Slot<K> offer(K key, Slot<K> slot, long weight) {
+    if (holds(slot, key)) {
+      slot.count += weight;
+      siftDown(slot.index);
+      return slot;
+    }
+    if (size < heap.length) {
+      Slot<K> added = new Slot<>(key, weight, 0L);
+      added.index = size;
+      heap[size++] = added;
+      siftUp(added.index);
+      return added;
+    }
+    Slot<K> minimum = heap[0];
+    minimum.key = key;
+    minimum.error = minimum.count;
+    minimum.count += weight;
+    siftDown(0);
+    return minimum;
+  }
+
+  /**
+   * Returns whether the slot still tracks the given key.
+   */
+  boolean holds(Slot<K> slot, K key) {
+    return slot != null && slot.key == key;
+  }
+
+  /**
+   * Stops tracking the key held by the given slot, if it still holds it.
+   */
+  void remove(Slot<K> slot, K key) {
+    if (!holds(slot, key)) {
+      return;
+    }
+    int index = slot.index;
+    slot.key = null;
+    Slot<K> last = heap[--size];
+    heap[size] = null;
+    if (index < size) {
+      heap[index] = last;
+      last.index = index;
+      siftDown(index);
+      siftUp(last.index);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void siftUp(int index) {
+    Slot<K> slot = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (heap[parent].count <= slot.count) {
+        break;
+      }
+      heap[index] = heap[parent];
+      heap[index].index = index;
+      index = parent;
+    }
+    heap[index] = slot;
+    slot.index = index;
+  }
+
+  private void siftDown(int index) {
+    Slot<K> slot = heap[index];
+    int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (slot.count <= heap[child].count) {
+        break;
+      }
+      heap[index] = heap[child];
+      heap[index].index = index;
+      index = child;
+    }
+    heap[index] = slot;
+    slot.index = index;
+  }
+
+  /**
+   * Entry of the table. The count overestimates the key's total weight by at most the error.
+   */
+  static final class Slot<K> {
+
+    private K key;
+    private long count;
+    private long error;
+    private int index;
+
+    Slot(K key, long count, long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getError() {
+      return error;
+    }
+  }
+}
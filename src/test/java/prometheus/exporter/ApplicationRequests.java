@@ -0,0 +1,44 @@
+package prometheus.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+
+/**
+ * Requests processed by a Jersey application in the test's thread, without a container.
+ */
+final class ApplicationRequests {
+
+  private ApplicationRequests() {
+  }
+
+  /**
+   * Returns a request for the given path on {@code http://localhost/}, to add headers or an entity
+   * to before applying it.
+   */
+  static ContainerRequest request(String method, String path) {
+    return new ContainerRequest(URI.create("http://localhost/"),
+        URI.create("http://localhost" + path), method, null, new MapPropertiesDelegate());
+  }
+
+  /**
+   * Processes a request without entity and waits for its response.
+   */
+  static ContainerResponse apply(ApplicationHandler application, String method, String path)
+      throws Exception {
+    return apply(application, request(method, path), new ByteArrayOutputStream());
+  }
+
+  /**
+   * Processes a request, writing the response entity to the given stream, and waits for the
+   * response.
+   */
+  static ContainerResponse apply(ApplicationHandler application, ContainerRequest request,
+      OutputStream body) throws Exception {
+    return application.apply(request, body).get();
+  }
+}
@@ -0,0 +1,111 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class DDSketchTest {
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  @Test
+  public void shouldReturnQuantilesWithinRelativeAccuracy() {
+    DDSketch sketch = new DDSketch();
+    double[] values = new double[10000];
+    Random random = new Random(42);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.exp(random.nextGaussian() - 4);
+      sketch.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    double[] quantiles = {0.0, 0.5, 0.9, 0.99, 0.999, 1.0};
+    double[] estimates = sketch.getQuantiles(quantiles);
+    for (int i = 0; i < quantiles.length; i++) {
+      double expected = values[(int) (quantiles[i] * (values.length - 1))];
+      assertTrue("quantile " + quantiles[i] + " was " + estimates[i] + " instead of " + expected,
+          Math.abs(estimates[i] - expected) <= expected * DDSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+    assertThat(sketch.getCount(), is(10000L));
+  }
+
+  @Test
+  public void shouldMergeSerializedSketches() {
+    DDSketch first = new DDSketch();
+    DDSketch second = new DDSketch();
+    DDSketch all = new DDSketch();
+    for (int i = 1; i <= 1000; i++) {
+      (i % 2 == 0 ? first : second).record(i / 1000.0);
+      all.record(i / 1000.0);
+    }
+
+    DDSketch merged = DDSketch.fromByteArray(first.toByteArray());
+    merged.merge(DDSketch.fromByteArray(second.toByteArray()));
+
+    assertThat(merged.getCount(), is(1000L));
+    assertEquals(all.getSum(), merged.getSum(), 1e-9);
+    assertThat(merged.getQuantiles(new double[]{0.5, 0.99}),
+        is(all.getQuantiles(new double[]{0.5, 0.99})));
+  }
+
+  @Test
+  public void shouldReturnNaNIfEmpty() {
+    assertTrue(Double.isNaN(new DDSketch().getQuantile(0.5)));
+  }
+
+  @Test
+  public void shouldRejectSketchesWithDifferentParameters() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Cannot merge sketches with different parameters");
+    new DDSketch().merge(new DDSketch(0.01, DDSketch.DEFAULT_MIN_VALUE,
+        DDSketch.DEFAULT_MAX_VALUE));
+  }
+
+  @Test
+  public void shouldRejectMalformedBytes() {
+    expectedException.expect(IllegalArgumentException.class);
+    DDSketch.fromByteArray(new byte[]{1, 2, 3});
+  }
+
+  @Test
+  public void shouldRejectSerializedSketchNeedingTooManyBuckets() {
+    ByteBuffer bytes = ByteBuffer.allocate(1 + 4 * 8);
+    bytes.put((byte) 1).putDouble(1e-12).putDouble(DDSketch.DEFAULT_MIN_VALUE)
+        .putDouble(DDSketch.DEFAULT_MAX_VALUE).putDouble(0);
+
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("more than 65536 buckets");
+    DDSketch.fromByteArray(bytes.array());
+  }
+
+  @Test
+  public void shouldReturnQuantilesOfGivenBucketCounts() {
+    DDSketch sketch = new DDSketch();
+    sketch.record(1);
+    DDSketch expected = new DDSketch();
+    expected.record(2);
+    expected.record(3);
+    int first = sketch.index(2);
+    int second = sketch.index(3);
+
+    double[] quantiles = {0.0, 0.5, 1.0};
+    assertThat(Arrays.equals(sketch.getQuantiles(quantiles,
+        bucket -> bucket == first || bucket == second ? 1 : 0), expected.getQuantiles(quantiles)),
+        is(true));
+    assertThat(sketch.getCount(), is(1L));
+  }
+
+  @Test
+  public void shouldHaveFixedNumberOfBucketsWithDefaultParameters() {
+    assertThat(new DDSketch().bucketCount(), is(461));
+  }
+}
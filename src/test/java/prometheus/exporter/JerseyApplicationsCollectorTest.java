@@ -0,0 +1,212 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.glassfish.jersey.server.monitoring.ResourceStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class JerseyApplicationsCollectorTest {
+
+  private static final String[] URI_LABELS = {"application", "uri", "method", "interval"};
+  private static final String[] APPLICATION_LABEL = {"application"};
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private CollectorRegistry collectorRegistry;
+  private JerseyApplicationsCollector collector;
+  private CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    collector = new JerseyApplicationsCollector(2, 200, TimeUnit.MILLISECONDS)
+        .register(collectorRegistry);
+  }
+
+  @After
+  public void after() {
+    release.countDown();
+    collector.close();
+  }
+
+  @Test
+  public void shouldMergeApplicationsIntoOneFamilyPerName() {
+    collector.add("orders", new SyntheticMonitoringStatistics(2, 2));
+    collector.add("billing", new SyntheticMonitoringStatistics(3, 2));
+
+    List<MetricFamilySamples> metrics = collector.collect();
+    Set<String> names = new HashSet<>();
+    for (MetricFamilySamples family : metrics) {
+      assertThat(family.name, names.add(family.name), is(true));
+    }
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"orders", "/resource/1", "GET", "1"}), is(1.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"billing", "/resource/2", "POST", "1"}), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_response_count",
+        new String[]{"application", "response_code"}, new String[]{"billing", "200"}),
+        is(1000.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_exception_mappings_count_total",
+        APPLICATION_LABEL, new String[]{"orders"}), is(3.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_application_scrape_success",
+        APPLICATION_LABEL, new String[]{"orders"}), is(1.0));
+  }
+
+  @Test
+  public void shouldShareLabelValuesAcrossApplications() {
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1));
+    collector.add("billing", new SyntheticMonitoringStatistics(1, 1));
+
+    MetricFamilySamples requestCount = family(collector.collect(), "jersey_request_count");
+    MetricFamilySamples.Sample billing = requestCount.samples.get(0);
+    MetricFamilySamples.Sample orders = requestCount.samples.get(requestCount.samples.size() - 1);
+    assertThat(billing.labelValues.get(0), is("billing"));
+    assertThat(orders.labelValues.get(0), is("orders"));
+    assertThat(orders.labelValues.get(1), sameInstance(billing.labelValues.get(1)));
+    assertThat(orders.labelNames, sameInstance(billing.labelNames));
+
+    MetricFamilySamples again = family(collector.collect(), "jersey_request_count");
+    assertThat(again.samples.get(0).labelValues, sameInstance(billing.labelValues));
+  }
+
+  @Test
+  public void shouldSkipApplicationsOverBudget() {
+    collector.add("fast", new SyntheticMonitoringStatistics(1, 1));
+    collector.add("slow", new SyntheticMonitoringStatistics(1, 1) {
+      @Override
+      public Map<String, ResourceStatistics> getUriStatistics() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.getUriStatistics();
+      }
+    });
+
+    long start = System.nanoTime();
+    collector.collect();
+    assertThat(collectorRegistry.getSampleValue("jersey_application_scrape_success",
+        APPLICATION_LABEL, new String[]{"slow"}), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_application_scrape_success",
+        APPLICATION_LABEL, new String[]{"fast"}), is(1.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"fast", "/resource/0", "GET", "0"}), is(0.0));
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000, is(true));
+
+    release.countDown();
+    assertThat(collectorRegistry.getSampleValue("jersey_application_scrape_success",
+        APPLICATION_LABEL, new String[]{"slow"}), is(1.0));
+  }
+
+  @Test
+  public void shouldStartBudgetWhenCollectionStarts() {
+    // Together the collections take longer than the budget, but each of them is well within it.
+    JerseyApplicationsCollector sequential = new JerseyApplicationsCollector(1, 1000,
+        TimeUnit.MILLISECONDS);
+    try {
+      sequential.add("first", new SlowMonitoringStatistics(600));
+      sequential.add("second", new SlowMonitoringStatistics(600));
+
+      MetricFamilySamples success = family(sequential.collect(),
+          "jersey_application_scrape_success");
+      assertThat(success.samples.get(0).value, is(1.0));
+      assertThat(success.samples.get(1).value, is(1.0));
+    } finally {
+      sequential.close();
+    }
+  }
+
+  @Test
+  public void shouldNameCollectionThreadsByIndex() {
+    List<String> threadNames = new CopyOnWriteArrayList<>();
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1) {
+      @Override
+      public Map<String, ResourceStatistics> getUriStatistics() {
+        threadNames.add(Thread.currentThread().getName());
+        return super.getUriStatistics();
+      }
+    });
+    collector.collect();
+
+    assertThat(threadNames.get(0), is("jersey-exporter-applications-1"));
+  }
+
+  @Test
+  public void shouldKeepSharingLabelValuesAfterRemove() {
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1));
+    collector.add("billing", new SyntheticMonitoringStatistics(1, 1));
+    MetricFamilySamples.Sample billing = family(collector.collect(), "jersey_request_count")
+        .samples.get(0);
+
+    collector.remove("orders");
+    collector.add("shipping", new SyntheticMonitoringStatistics(1, 1));
+    MetricFamilySamples requestCount = family(collector.collect(), "jersey_request_count");
+    MetricFamilySamples.Sample shipping = requestCount.samples.get(requestCount.samples.size() - 1);
+    assertThat(shipping.labelValues.get(0), is("shipping"));
+    assertThat(shipping.labelValues.get(1), sameInstance(billing.labelValues.get(1)));
+  }
+
+  @Test
+  public void shouldRemoveApplication() {
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1));
+    collector.remove("orders");
+
+    assertThat(collectorRegistry.getSampleValue("jersey_application_scrape_success",
+        APPLICATION_LABEL, new String[]{"orders"}) == null, is(true));
+  }
+
+  @Test
+  public void shouldRejectDuplicateApplication() {
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1));
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Application orders is already added");
+    collector.add("orders", new SyntheticMonitoringStatistics(1, 1));
+  }
+
+  private static class SlowMonitoringStatistics extends SyntheticMonitoringStatistics {
+
+    private final long millis;
+
+    SlowMonitoringStatistics(long millis) {
+      super(1, 1);
+      this.millis = millis;
+    }
+
+    @Override
+    public Map<String, ResourceStatistics> getUriStatistics() {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.getUriStatistics();
+    }
+  }
+
+  private static MetricFamilySamples family(List<MetricFamilySamples> metrics, String name) {
+    for (MetricFamilySamples family : metrics) {
+      if (family.name.equals(name)) {
+        return family;
+      }
+    }
+    throw new AssertionError("No family " + name);
+  }
+}
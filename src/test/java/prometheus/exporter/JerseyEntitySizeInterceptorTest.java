@@ -0,0 +1,146 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+import static prometheus.exporter.ApplicationRequests.request;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyEntitySizeInterceptorTest {
+
+  private CollectorRegistry collectorRegistry;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    application = new ApplicationHandler(new ResourceConfig(EchoResource.class, RawResource.class)
+        .register(new JerseyEntitySizeInterceptor(collectorRegistry, 10, 100)));
+  }
+
+  @Test
+  public void shouldRecordEntitySizesPerUriTemplateMethodAndMediaType() throws Exception {
+    post("hello");
+    post("hello world, this is a longer entity");
+
+    String[] labelNames = {"uri", "method", "media_type"};
+    String[] labelValues = {"/echo", "POST", "text/plain"};
+    assertThat(collectorRegistry.getSampleValue("jersey_request_entity_bytes_count", labelNames,
+        labelValues), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_entity_bytes_sum", labelNames,
+        labelValues), is(41.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_response_entity_bytes_sum", labelNames,
+        labelValues), is(53.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_entity_bytes_bucket",
+        new String[]{"uri", "method", "media_type", "le"},
+        new String[]{"/echo", "POST", "text/plain", "10.0"}), is(1.0));
+  }
+
+  @Test
+  public void shouldIgnoreMediaTypeParameters() throws Exception {
+    post("/echo", "text/plain; boundary=first", "hello");
+    post("/echo", "text/plain; boundary=second", "hello");
+
+    assertThat(requestSeries(), is(1));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_entity_bytes_count",
+        new String[]{"uri", "method", "media_type"}, new String[]{"/echo", "POST", "text/plain"}),
+        is(2.0));
+  }
+
+  @Test
+  public void shouldLabelUndeclaredMediaTypesAsOther() throws Exception {
+    post("/raw", "text/x-first", "hello");
+    post("/raw", "text/x-second", "hello");
+
+    assertThat(requestSeries(), is(1));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_entity_bytes_count",
+        new String[]{"uri", "method", "media_type"}, new String[]{"/raw", "POST", "other"}),
+        is(2.0));
+  }
+
+  @Test
+  public void shouldRecordSerializationTimePerWriter() throws Exception {
+    post("hello");
+
+    Enumeration<Collector.MetricFamilySamples> families = collectorRegistry
+        .metricFamilySamples();
+    while (families.hasMoreElements()) {
+      Collector.MetricFamilySamples family = families.nextElement();
+      if (family.name.equals("jersey_entity_serialization_seconds")) {
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+          if (sample.name.endsWith("_count")) {
+            assertThat(sample.labelValues.get(0).isEmpty(), is(false));
+            assertThat(sample.value, is(1.0));
+            return;
+          }
+        }
+      }
+    }
+    throw new AssertionError("No serialization time recorded");
+  }
+
+  private int requestSeries() {
+    Enumeration<Collector.MetricFamilySamples> families = collectorRegistry
+        .metricFamilySamples();
+    while (families.hasMoreElements()) {
+      Collector.MetricFamilySamples family = families.nextElement();
+      if (family.name.equals("jersey_request_entity_bytes")) {
+        int series = 0;
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+          if (sample.name.endsWith("_count") && sample.value > 0) {
+            series++;
+          }
+        }
+        return series;
+      }
+    }
+    return 0;
+  }
+
+  private void post(String entity) throws Exception {
+    post("/echo", MediaType.TEXT_PLAIN, entity);
+  }
+
+  private void post(String path, String mediaType, String entity) throws Exception {
+    ContainerRequest request = request("POST", path);
+    request.header("Content-Type", mediaType);
+    request.setEntityStream(new ByteArrayInputStream(entity.getBytes(StandardCharsets.UTF_8)));
+    apply(application, request, new ByteArrayOutputStream());
+  }
+
+  @Path("echo")
+  public static class EchoResource {
+
+    @POST
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public String echo(String entity) {
+      return "echo: " + entity;
+    }
+  }
+
+  @Path("raw")
+  public static class RawResource {
+
+    @POST
+    public String raw(String entity) {
+      return entity;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyExceptionListenerTest {
+
+  private static final String[] EXCEPTION_LABELS = {"exception", "mapper"};
+
+  private final AtomicLong clock = new AtomicLong();
+  private CollectorRegistry collectorRegistry;
+  private JerseyExceptionListener listener;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    listener = new JerseyExceptionListener(1, 2, clock::get, 0.5, 1.0)
+        .register(collectorRegistry);
+    application = new ApplicationHandler(new ResourceConfig(ItemResource.class)
+        .register(listener)
+        .register(new StateMapper())
+        .register(new NumberMapper()));
+  }
+
+  @Test
+  public void shouldRecordFailedRequestsByExceptionAndMapper() throws Exception {
+    apply(application, "GET", "/items/1");
+    apply(application, "GET", "/items/state");
+    apply(application, "GET", "/items/state");
+    apply(application, "GET", "/items/missing");
+
+    String[] mapped = {"java.lang.IllegalStateException",
+        "prometheus.exporter.JerseyExceptionListenerTest.StateMapper"};
+    assertThat(collectorRegistry.getSampleValue("jersey_failed_request_duration_seconds_count",
+        EXCEPTION_LABELS, mapped), is(2.0));
+    assertThat(collectorRegistry.getSampleValue(
+        "jersey_exception_mapping_duration_seconds_count", EXCEPTION_LABELS, mapped), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_failed_request_duration_seconds_count",
+        EXCEPTION_LABELS, new String[]{"javax.ws.rs.NotFoundException", "none"}), is(1.0));
+  }
+
+  @Test
+  public void shouldSampleCallSitesAtLimitedRate() throws Exception {
+    apply(application, "GET", "/items/state");
+    apply(application, "GET", "/items/state");
+    assertThat(collectorRegistry.getSampleValue("jersey_exception_samples_total"), is(1.0));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    apply(application, "GET", "/items/state");
+    assertThat(collectorRegistry.getSampleValue("jersey_exception_samples_total"), is(2.0));
+
+    MetricFamilySamples.Sample callSite = onlyCallSite();
+    assertThat(callSite.labelValues.get(0), is("java.lang.IllegalStateException"));
+    assertThat(callSite.labelValues.get(1).startsWith(
+        "prometheus.exporter.JerseyExceptionListenerTest$ItemResource.get("), is(true));
+    assertThat(callSite.labelValues.get(2), is("/items/{id}"));
+    assertThat(callSite.labelValues.get(3), is("GET"));
+    assertThat(callSite.value, is(2.0));
+  }
+
+  @Test
+  public void shouldSkipJdkFramesOfCallSite() throws Exception {
+    apply(application, "GET", "/items/number");
+
+    MetricFamilySamples.Sample callSite = onlyCallSite();
+    assertThat(callSite.labelValues.get(0), is("java.lang.NumberFormatException"));
+    assertThat(callSite.labelValues.get(1).startsWith(
+        "prometheus.exporter.JerseyExceptionListenerTest$ItemResource.get("), is(true));
+  }
+
+  private MetricFamilySamples.Sample onlyCallSite() {
+    for (MetricFamilySamples family : listener.collect()) {
+      if (family.name.equals("jersey_exception_call_site_samples")) {
+        assertThat(family.samples.size(), is(1));
+        return family.samples.get(0);
+      }
+    }
+    throw new AssertionError("No call sites exported");
+  }
+
+  @Path("items/{id}")
+  public static class ItemResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      if (id.equals("state")) {
+        throw new IllegalStateException("Control flow");
+      }
+      if (id.equals("missing")) {
+        throw new NotFoundException();
+      }
+      if (id.equals("number")) {
+        return Integer.toString(Integer.parseInt(id));
+      }
+      return id;
+    }
+  }
+
+  public static class StateMapper implements ExceptionMapper<IllegalStateException> {
+
+    @Override
+    public Response toResponse(IllegalStateException exception) {
+      return Response.status(Response.Status.CONFLICT).build();
+    }
+  }
+
+  public static class NumberMapper implements ExceptionMapper<NumberFormatException> {
+
+    @Override
+    public Response toResponse(NumberFormatException exception) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+
+import io.prometheus.client.CollectorRegistry;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyInFlightTrackerTest {
+
+  private static CountDownLatch started;
+  private static CountDownLatch release;
+
+  private CollectorRegistry collectorRegistry;
+  private JerseyInFlightTracker tracker;
+  private ApplicationHandler application;
+  private ExecutorService executor;
+
+  @Before
+  public void before() {
+    started = new CountDownLatch(2);
+    release = new CountDownLatch(1);
+    collectorRegistry = new CollectorRegistry();
+    tracker = new JerseyInFlightTracker(16, 1).register(collectorRegistry);
+    application = new ApplicationHandler(new ResourceConfig(SlowResource.class).register(tracker));
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void after() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldTrackRequestsInFlight() throws Exception {
+    Future<?> first = executor.submit(() -> apply(application, "GET", "/slow/1"));
+    Future<?> second = executor.submit(() -> apply(application, "GET", "/slow/2"));
+    assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight"), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_resource_requests_in_flight",
+        new String[]{"uri", "method"}, new String[]{"/slow/{id}", "GET"}), is(2.0));
+    assertThat(collectorRegistry.getSampleValue(
+        "jersey_resource_request_in_flight_oldest_seconds", new String[]{"uri", "method"},
+        new String[]{"/slow/{id}", "GET"}) > 0.0, is(true));
+    StringWriter json = new StringWriter();
+    tracker.writeSlowest(json);
+    assertThat(json.toString(), containsString("{\"inFlight\":2,\"untracked\":0,\"slowest\":"
+        + "[{\"uri\":\"/slow/{id}\",\"method\":\"GET\",\"path\":\"/slow/"));
+
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+
+    // Every lookup is a scrape, none of which resets the peak.
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight_peak"), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight_peak"), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight"), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_resource_requests_in_flight",
+        new String[]{"uri", "method"}, new String[]{"/slow/{id}", "GET"}), is(0.0));
+    json = new StringWriter();
+    tracker.writeSlowest(json);
+    assertThat(json.toString(), is("{\"inFlight\":0,\"untracked\":0,\"slowest\":[]}"));
+    assertThat(collectorRegistry.getSampleValue(
+        "jersey_resource_request_in_flight_oldest_seconds", new String[]{"uri", "method"},
+        new String[]{"/slow/{id}", "GET"}), is(0.0));
+  }
+
+  @Test
+  public void shouldCountRequestsWithoutSlotAsUntrackedWhileInFlight() throws Exception {
+    collectorRegistry = new CollectorRegistry();
+    tracker = new JerseyInFlightTracker(1, 1).register(collectorRegistry);
+    application = new ApplicationHandler(new ResourceConfig(SlowResource.class).register(tracker));
+
+    Future<?> first = executor.submit(() -> apply(application, "GET", "/slow/1"));
+    Future<?> second = executor.submit(() -> apply(application, "GET", "/slow/2"));
+    assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight"), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight_untracked"), is(1.0));
+
+    release.countDown();
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight"), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_requests_in_flight_untracked"), is(0.0));
+    StringWriter json = new StringWriter();
+    tracker.writeSlowest(json);
+    assertThat(json.toString(), is("{\"inFlight\":0,\"untracked\":0,\"slowest\":[]}"));
+  }
+
+  @Path("slow/{id}")
+  public static class SlowResource {
+
+    @GET
+    public String get(@PathParam("id") String id) throws InterruptedException {
+      started.countDown();
+      release.await(10, TimeUnit.SECONDS);
+      return id;
+    }
+  }
+}
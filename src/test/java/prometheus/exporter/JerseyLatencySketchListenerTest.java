@@ -0,0 +1,104 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+
+import io.prometheus.client.CollectorRegistry;
+import java.io.StringWriter;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyLatencySketchListenerTest {
+
+  private static final String[] LABELS = {"uri", "method"};
+  private static final String[] QUANTILE_LABELS = {"uri", "method", "quantile"};
+
+  private final AtomicLong clock = new AtomicLong();
+  private CollectorRegistry collectorRegistry;
+  private JerseyLatencySketchListener listener;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    listener = new JerseyLatencySketchListener(0.01, 0.99, 0.5).register(collectorRegistry);
+    application = new ApplicationHandler(new ResourceConfig(UserResource.class).register(listener));
+  }
+
+  @Test
+  public void shouldExportQuantilesPerUriTemplateAndMethod() throws Exception {
+    apply(application, "GET", "/users/1");
+    apply(application, "GET", "/users/2");
+
+    assertThat(collectorRegistry.getSampleValue("jersey_request_duration_sketch_seconds_count",
+        new String[]{"uri", "method"}, new String[]{"/users/{id}", "GET"}), is(2.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_duration_sketch_seconds",
+        new String[]{"uri", "method", "quantile"}, new String[]{"/users/{id}", "GET", "0.5"}),
+        notNullValue());
+    assertThat(collectorRegistry.getSampleValue("jersey_request_duration_sketch_seconds",
+        new String[]{"uri", "method", "quantile"}, new String[]{"/users/{id}", "GET", "0.99"}),
+        notNullValue());
+  }
+
+  @Test
+  public void shouldExportQuantilesOfCurrentAndPreviousIntervalOnly() throws Exception {
+    listener = new JerseyLatencySketchListener(0.01, 1, TimeUnit.MINUTES, clock::get, 0.5);
+    collectorRegistry = new CollectorRegistry();
+    listener.register(collectorRegistry);
+    application = new ApplicationHandler(new ResourceConfig(UserResource.class).register(listener));
+    String[] median = {"/users/{id}", "GET", "0.5"};
+    apply(application, "GET", "/users/1");
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(90));
+    assertThat(Double.isNaN(collectorRegistry.getSampleValue(
+        "jersey_request_duration_sketch_seconds", QUANTILE_LABELS, median)), is(false));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+    assertThat(Double.isNaN(collectorRegistry.getSampleValue(
+        "jersey_request_duration_sketch_seconds", QUANTILE_LABELS, median)), is(true));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_duration_sketch_seconds_count",
+        LABELS, new String[]{"/users/{id}", "GET"}), is(1.0));
+
+    StringWriter writer = new StringWriter();
+    listener.writeSketches(writer);
+    String[] fields = writer.toString().split("\n")[0].split("\t");
+    assertThat(DDSketch.fromByteArray(Base64.getDecoder().decode(fields[2])).getCount(), is(1L));
+  }
+
+  @Test
+  public void shouldTakeLessThanEightKilobytesPerMethod() {
+    assertThat(new JerseyLatencySketchListener().bytesPerMethod(), is(7376L));
+  }
+
+  @Test
+  public void shouldWriteMergeableSketches() throws Exception {
+    apply(application, "GET", "/users/1");
+    StringWriter writer = new StringWriter();
+
+    listener.writeSketches(writer);
+
+    String[] fields = writer.toString().split("\n")[0].split("\t");
+    assertThat(fields[0], is("/users/{id}"));
+    assertThat(fields[1], is("GET"));
+    assertThat(DDSketch.fromByteArray(Base64.getDecoder().decode(fields[2])).getCount(), is(1L));
+  }
+
+  @Path("users/{id}")
+  public static class UserResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      return id;
+    }
+  }
+}
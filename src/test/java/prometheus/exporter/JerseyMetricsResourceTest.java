@@ -0,0 +1,242 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import javax.ws.rs.core.MediaType;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.monitoring.ResourceStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyMetricsResourceTest {
+
+  private SyntheticMonitoringStatistics statistics;
+  private CollectorRegistry registry;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    statistics = new SyntheticMonitoringStatistics(3, 2);
+    registry = new CollectorRegistry();
+    Counter.build("other_total", "Some other \"metric\"\nwith \\ escapes").labelNames("label")
+        .register(registry).labels("välue \"quoted\"\n").inc(1.5);
+    application = new ApplicationHandler(new ResourceConfig().registerResources(
+        new JerseyMetricsResource(new JerseyStatisticsCollector(statistics), registry)
+            .toResource()));
+  }
+
+  @Test
+  public void shouldWriteSameTextAsTextFormat() throws Exception {
+    CollectorRegistry expectedRegistry = new CollectorRegistry();
+    new JerseyStatisticsCollector(statistics).register(expectedRegistry);
+    StringWriter expected = new StringWriter();
+    TextFormat.write004(expected, expectedRegistry.metricFamilySamples());
+    TextFormat.write004(expected, registry.metricFamilySamples());
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    ContainerResponse response = request(null, null, body);
+
+    assertThat(response.getMediaType(), is(MediaType.valueOf(TextFormat.CONTENT_TYPE_004)));
+    assertThat(new String(body.toByteArray(), StandardCharsets.UTF_8), is(expected.toString()));
+  }
+
+  @Test
+  public void shouldCompressIfAccepted() throws Exception {
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    request(null, null, plain);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ContainerResponse response = request(null, "gzip, deflate", compressed);
+
+    assertThat(response.getHeaderString("Content-Encoding"), is("gzip"));
+    assertThat(decompress(compressed), is(plain.toString("UTF-8")));
+  }
+
+  @Test
+  public void shouldReuseCompressorForLaterScrapes() throws Exception {
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    request(null, null, plain);
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      request(null, "gzip", compressed);
+      assertThat(decompress(compressed), is(plain.toString("UTF-8")));
+    }
+  }
+
+  @Test
+  public void shouldRegisterAsResourceWithoutProviderWarning() throws Exception {
+    List<LogRecord> warnings = new ArrayList<>();
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if (record.getLevel().intValue() >= Level.WARNING.intValue()
+            && String.valueOf(record.getMessage())
+            .contains("provider " + JerseyMetricsResource.class.getName() + " ")) {
+          warnings.add(record);
+        }
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    Logger logger = Logger.getLogger("org.glassfish.jersey");
+    logger.addHandler(handler);
+    try {
+      application = new ApplicationHandler(new ResourceConfig().registerResources(
+          new JerseyMetricsResource(new JerseyStatisticsCollector(statistics), registry)
+              .toResource()));
+      assertThat(request(null, null, new ByteArrayOutputStream()).getStatus(), is(200));
+    } finally {
+      logger.removeHandler(handler);
+    }
+    assertThat(warnings.isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldWriteOpenMetricsIfAccepted() throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    ContainerResponse response = request("application/openmetrics-text; version=1.0.0,*/*;q=0.1",
+        null, body);
+    String text = body.toString("UTF-8");
+
+    assertThat(response.getMediaType(),
+        is(MediaType.valueOf(ExpositionWriter.CONTENT_TYPE_OPENMETRICS)));
+    assertThat(response.getHeaderString("Vary"), is("Accept, Accept-Encoding"));
+    assertThat(text, containsString("# TYPE jersey_request_count counter\n"));
+    assertThat(text, containsString(
+        "jersey_request_count_total{uri=\"/resource/0\",method=\"GET\",interval=\"0\"} 0.0\n"));
+    assertThat(text, containsString("# TYPE other counter\n"));
+    assertThat(text, containsString(
+        "# HELP other Some other \\\"metric\\\"\\nwith \\\\ escapes\n"));
+    assertThat(text, endsWith("# EOF\n"));
+  }
+
+  @Test
+  public void shouldNotWriteOpenMetricsIfRefused() throws Exception {
+    ContainerResponse response = request("application/openmetrics-text;q=0, text/plain;q=0.5",
+        null, new ByteArrayOutputStream());
+    assertThat(response.getMediaType(), is(MediaType.valueOf(TextFormat.CONTENT_TYPE_004)));
+
+    response = request("*/*", null, new ByteArrayOutputStream());
+    assertThat(response.getMediaType(), is(MediaType.valueOf(TextFormat.CONTENT_TYPE_004)));
+
+    response = request("text/plain;q=0.5, Application/OpenMetrics-Text;version=1.0.0;q=0.9",
+        null, new ByteArrayOutputStream());
+    assertThat(response.getMediaType(),
+        is(MediaType.valueOf(ExpositionWriter.CONTENT_TYPE_OPENMETRICS)));
+  }
+
+  @Test
+  public void shouldReadUriStatisticsOncePerScrape() throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    SyntheticMonitoringStatistics counted = new SyntheticMonitoringStatistics(3, 2) {
+      @Override
+      public Map<String, ResourceStatistics> getUriStatistics() {
+        reads.incrementAndGet();
+        return super.getUriStatistics();
+      }
+    };
+    application = new ApplicationHandler(new ResourceConfig().registerResources(
+        new JerseyMetricsResource(new JerseyStatisticsCollector(counted, 4), registry)
+            .toResource()));
+    request(null, null, new ByteArrayOutputStream());
+
+    assertThat(reads.get(), is(1));
+  }
+
+  @Test
+  public void shouldAppendTotalToCounterNamesBuiltAtRuntime() throws Exception {
+    String name = new StringBuilder("runtime").append("_counter").toString();
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples(name, Type.COUNTER, "Runtime",
+            Collections.singletonList(new MetricFamilySamples.Sample(
+                new StringBuilder(name).toString(), Collections.<String>emptyList(),
+                Collections.<String>emptyList(), 1))));
+      }
+    }.register(registry);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request("application/openmetrics-text; version=1.0.0", null, body);
+
+    assertThat(body.toString("UTF-8"), containsString("\nruntime_counter_total 1.0\n"));
+  }
+
+  @Test
+  public void shouldNotCompressIfGzipIsRefused() throws Exception {
+    ContainerResponse response = request(null, "gzip;q=0, identity", new ByteArrayOutputStream());
+    assertThat(response.getHeaderString("Content-Encoding"), nullValue());
+
+    response = request(null, "x-gzipped", new ByteArrayOutputStream());
+    assertThat(response.getHeaderString("Content-Encoding"), nullValue());
+
+    response = request(null, "br;q=1.0, *;q=0.5", new ByteArrayOutputStream());
+    assertThat(response.getHeaderString("Content-Encoding"), is("gzip"));
+  }
+
+  @Test
+  public void shouldCountStreamedSamplesInScrapeMetrics() throws Exception {
+    application = new ApplicationHandler(new ResourceConfig().registerResources(
+        new JerseyMetricsResource(new JerseyStatisticsCollector(statistics).exportScrapeMetrics(),
+            registry).toResource()));
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    request(null, null, body);
+    String text = body.toString("UTF-8");
+
+    assertThat(text, containsString("\njersey_exporter_families 10.0\n"));
+    assertThat(text, containsString("\njersey_exporter_samples 67.0\n"));
+    assertThat(text, containsString("jersey_exporter_collect_duration_seconds{section=\"uris\",}"));
+  }
+
+  private static String decompress(ByteArrayOutputStream compressed) throws Exception {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      decompressed.write(buffer, 0, read);
+    }
+    return decompressed.toString("UTF-8");
+  }
+
+  private ContainerResponse request(String accept, String acceptEncoding,
+      ByteArrayOutputStream body) throws Exception {
+    ContainerRequest request = ApplicationRequests.request("GET", "/metrics");
+    if (accept != null) {
+      request.header("Accept", accept);
+    }
+    if (acceptEncoding != null) {
+      request.header("Accept-Encoding", acceptEncoding);
+    }
+    return ApplicationRequests.apply(application, request, body);
+  }
+}
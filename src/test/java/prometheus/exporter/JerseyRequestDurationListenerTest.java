@@ -0,0 +1,84 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+
+import io.prometheus.client.CollectorRegistry;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class JerseyRequestDurationListenerTest {
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  private CollectorRegistry collectorRegistry;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    application = new ApplicationHandler(new ResourceConfig(UserResource.class)
+        .register(new JerseyRequestDurationListener(collectorRegistry, 0.5, 1.0)));
+  }
+
+  @Test
+  public void shouldFailIfNoRegistryPassed() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Collector registry cannot be null");
+    new JerseyRequestDurationListener(null);
+  }
+
+  @Test
+  public void shouldRecordRequestDurationPerUriTemplateAndMethod() throws Exception {
+    apply(application, "GET", "/users/1");
+    apply(application, "GET", "/users/2");
+    apply(application, "POST", "/users/1");
+
+    assertThat(sample("jersey_request_duration_seconds_count", "/users/{id}", "GET"), is(2.0));
+    assertThat(sample("jersey_request_duration_seconds_count", "/users/{id}", "POST"), is(1.0));
+    assertThat(sample("jersey_request_duration_seconds_bucket", "/users/{id}", "GET", "+Inf"),
+        is(2.0));
+  }
+
+  @Test
+  public void shouldNotRecordUnmatchedRequests() throws Exception {
+    apply(application, "GET", "/missing");
+
+    assertThat(sample("jersey_request_duration_seconds_count", "/missing", "GET"), nullValue());
+  }
+
+  private Double sample(String name, String uri, String method) {
+    return collectorRegistry.getSampleValue(name, new String[]{"uri", "method"},
+        new String[]{uri, method});
+  }
+
+  private Double sample(String name, String uri, String method, String le) {
+    return collectorRegistry.getSampleValue(name, new String[]{"uri", "method", "le"},
+        new String[]{uri, method, le});
+  }
+
+  @Path("users/{id}")
+  public static class UserResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      return id;
+    }
+
+    @POST
+    public String post(@PathParam("id") String id) {
+      return id;
+    }
+  }
+}
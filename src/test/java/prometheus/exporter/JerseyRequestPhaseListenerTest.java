@@ -0,0 +1,74 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+
+import io.prometheus.client.CollectorRegistry;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyRequestPhaseListenerTest {
+
+  private CollectorRegistry collectorRegistry;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    application = new ApplicationHandler(new ResourceConfig(UserResource.class)
+        .register(new JerseyRequestPhaseListener(collectorRegistry, 0.5, 1.0))
+        .register(new BlockingFilter()));
+  }
+
+  @Test
+  public void shouldRecordEveryPhaseOfSuccessfulRequests() throws Exception {
+    apply(application, "GET", "/users/1");
+    apply(application, "GET", "/users/2");
+
+    for (String phase : new String[]{"pre_matching", "matching", "request_filters",
+        "resource_method", "response_filters", "response_writing"}) {
+      assertThat(phase, phaseCount("/users/{id}", phase), is(2.0));
+    }
+  }
+
+  @Test
+  public void shouldNotRecordPhasesThatDidNotHappen() throws Exception {
+    apply(application, "GET", "/users/blocked");
+
+    assertThat(phaseCount("/users/{id}", "matching"), is(1.0));
+    assertThat(phaseCount("/users/{id}", "resource_method"), is(0.0));
+  }
+
+  private Double phaseCount(String uri, String phase) {
+    return collectorRegistry.getSampleValue("jersey_request_phase_duration_seconds_count",
+        new String[]{"uri", "method", "phase"}, new String[]{uri, "GET", phase});
+  }
+
+  @Path("users/{id}")
+  public static class UserResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      return id;
+    }
+  }
+
+  private static class BlockingFilter implements ContainerRequestFilter {
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+      if (requestContext.getUriInfo().getPath().endsWith("blocked")) {
+        requestContext.abortWith(Response.status(Response.Status.FORBIDDEN).build());
+      }
+    }
+  }
+}
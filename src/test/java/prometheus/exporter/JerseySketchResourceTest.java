@@ -0,0 +1,70 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static prometheus.exporter.ApplicationRequests.apply;
+import static prometheus.exporter.ApplicationRequests.request;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.MediaType;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseySketchResourceTest {
+
+  private JerseyLatencySketchListener listener;
+  private ApplicationHandler application;
+
+  @Before
+  public void before() {
+    listener = new JerseyLatencySketchListener();
+    application = new ApplicationHandler(new ResourceConfig(UserResource.class)
+        .register(listener)
+        .register(new JerseySketchResource(listener)));
+  }
+
+  @Test
+  public void shouldServeSketchesThatCanBeRestoredAndMerged() throws Exception {
+    apply(application, "GET", "/users/1");
+    apply(application, "GET", "/users/2");
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    ContainerResponse response = apply(application, request("GET", "/metrics/sketches"), body);
+
+    assertThat(response.getStatus(), is(200));
+    assertThat(response.getMediaType().isCompatible(MediaType.TEXT_PLAIN_TYPE), is(true));
+    DDSketch merged = new DDSketch();
+    int lines = 0;
+    for (String line : new String(body.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+      String[] fields = line.split("\t");
+      if (fields[0].equals("/users/{id}") && fields[1].equals("GET")) {
+        merged.merge(DDSketch.fromByteArray(Base64.getDecoder().decode(fields[2])));
+        lines++;
+      }
+    }
+    assertThat(lines, is(1));
+    assertThat(merged.getCount(), is(2L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectMissingListener() {
+    new JerseySketchResource(null);
+  }
+
+  @Path("users/{id}")
+  public static class UserResource {
+
+    @GET
+    public String get(@PathParam("id") String id) {
+      return id;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import io.prometheus.client.Collector;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.junit.Test;
+
+public class JerseyStatisticsCollectorAllocationTest {
+
+  private static final int RESOURCES = 400;
+  private static final int TIME_WINDOWS = 5;
+  private static final int SAMPLES_PER_SCRAPE = RESOURCES * 2 * TIME_WINDOWS * 5;
+
+  @Test
+  public void shouldReuseLabelValuesAcrossScrapes() {
+    JerseyStatisticsCollector collector = new JerseyStatisticsCollector(
+        new SyntheticMonitoringStatistics(2, 2));
+
+    List<Collector.MetricFamilySamples> first = collector.collect();
+    List<Collector.MetricFamilySamples> second = collector.collect();
+
+    Collector.MetricFamilySamples firstCounts = family(first, "jersey_request_count");
+    Collector.MetricFamilySamples secondCounts = family(second, "jersey_request_count");
+    assertThat(firstCounts.samples.size(), is(8));
+    for (int i = 0; i < firstCounts.samples.size(); i++) {
+      assertThat(secondCounts.samples.get(i).labelValues,
+          sameInstance(firstCounts.samples.get(i).labelValues));
+    }
+  }
+
+  @Test
+  public void shouldAllocateLittleMoreThanTheSamplesThemselves() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+    JerseyStatisticsCollector collector = new JerseyStatisticsCollector(
+        new SyntheticMonitoringStatistics(RESOURCES, TIME_WINDOWS));
+    for (int i = 0; i < 200; i++) {
+      collector.collect();
+    }
+
+    int scrapes = 50;
+    long threadId = Thread.currentThread().getId();
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < scrapes; i++) {
+      collector.collect();
+    }
+    long bytesPerSample =
+        (allocationBean.getThreadAllocatedBytes(threadId) - before) / scrapes / SAMPLES_PER_SCRAPE;
+
+    // A Sample object plus its slot in the family's list; one family object per sample, as
+    // allocated previously, would cost several times as much.
+    assertTrue("Allocated " + bytesPerSample + " bytes per sample", bytesPerSample < 96);
+  }
+
+  private static Collector.MetricFamilySamples family(List<Collector.MetricFamilySamples> families,
+      String name) {
+    for (Collector.MetricFamilySamples family : families) {
+      if (family.name.equals(name)) {
+        return family;
+      }
+    }
+    throw new AssertionError("No family " + name);
+  }
+}
@@ -1,15 +1,29 @@
 package prometheus.exporter;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.container.ContainerRequestContext;
+import org.glassfish.jersey.process.Inflector;
+import org.glassfish.jersey.server.model.Resource;
 import org.glassfish.jersey.server.model.ResourceMethod;
 import org.glassfish.jersey.server.monitoring.ExceptionMapperStatistics;
+import org.glassfish.jersey.server.monitoring.ExecutionStatistics;
 import org.glassfish.jersey.server.monitoring.MonitoringStatistics;
 import org.glassfish.jersey.server.monitoring.ResourceMethodStatistics;
 import org.glassfish.jersey.server.monitoring.ResourceStatistics;
@@ -88,24 +102,28 @@ public class JerseyStatisticsCollectorTest {
   @Test
   public void shouldPublishUriStatistics() {
     Map<Long, TimeWindowStatistics> timeWindowStatistics = new HashMap<>();
-    timeWindowStatistics.put(10L, PowerMockito.mock(TimeWindowStatistics.class));
-    timeWindowStatistics.put(100L, PowerMockito.mock(TimeWindowStatistics.class));
+    timeWindowStatistics.put(10000L, PowerMockito.mock(TimeWindowStatistics.class));
+    timeWindowStatistics.put(100000L, PowerMockito.mock(TimeWindowStatistics.class));
     for(Map.Entry<Long, TimeWindowStatistics> timeWindowStatisticsEntry: timeWindowStatistics.entrySet()) {
-      when(timeWindowStatisticsEntry.getValue().getAverageDuration()).thenReturn(1L);
-      when(timeWindowStatisticsEntry.getValue().getMaximumDuration()).thenReturn(2L);
-      when(timeWindowStatisticsEntry.getValue().getMinimumDuration()).thenReturn(3L);
+      when(timeWindowStatisticsEntry.getValue().getAverageDuration()).thenReturn(1000L);
+      when(timeWindowStatisticsEntry.getValue().getMaximumDuration()).thenReturn(2000L);
+      when(timeWindowStatisticsEntry.getValue().getMinimumDuration()).thenReturn(3000L);
       when(timeWindowStatisticsEntry.getValue().getRequestCount()).thenReturn(4L);
       when(timeWindowStatisticsEntry.getValue().getRequestsPerSecond()).thenReturn(5.0);
     }
 
     Map<ResourceMethod, ResourceMethodStatistics> methodStatistics = new HashMap<>();
 
-    ResourceMethod getMethod = mock(ResourceMethod.class);
-    ResourceMethod postMethod = mock(ResourceMethod.class);
-    when(getMethod.getHttpMethod()).thenReturn("GET");
-    when(postMethod.getHttpMethod()).thenReturn("POST");
+    Resource.Builder resourceBuilder = Resource.builder("/");
+    resourceBuilder.addMethod("GET").handledBy(new NoOpInflector());
+    resourceBuilder.addMethod("POST").handledBy(new NoOpInflector());
+    Resource resource = resourceBuilder.build();
+    ResourceMethod getMethod = resource.getResourceMethods().get(0);
+    ResourceMethod postMethod = resource.getResourceMethods().get(1);
+    ExecutionStatistics executionStatistics = mock(ExecutionStatistics.class);
+    when(executionStatistics.getTimeWindowStatistics()).thenReturn(timeWindowStatistics);
     ResourceMethodStatistics resourceMethodStatistics = mock(ResourceMethodStatistics.class);
-    when(resourceMethodStatistics.getMethodStatistics().getTimeWindowStatistics()).thenReturn(timeWindowStatistics);
+    when(resourceMethodStatistics.getMethodStatistics()).thenReturn(executionStatistics);
     methodStatistics.put(getMethod, resourceMethodStatistics);
     methodStatistics.put(postMethod, resourceMethodStatistics);
 
@@ -117,6 +135,8 @@ public class JerseyStatisticsCollectorTest {
     uriStatistics.put("/", resourceStatistics);
     uriStatistics.put("/path", resourceStatistics);
 
+    new JerseyStatisticsCollector(monitoringStatistics).register(collectorRegistry);
+
     assertThat(collectorRegistry.getSampleValue("jersey_request_duration_min_seconds", new String[]{"uri", "method", "interval"}, new String[]{"/", "GET", "10"}), is(3.0));
     assertThat(collectorRegistry.getSampleValue("jersey_request_duration_min_seconds", new String[]{"uri", "method", "interval"}, new String[]{"/", "GET", "100"}), is(3.0));
     assertThat(collectorRegistry.getSampleValue("jersey_request_duration_min_seconds", new String[]{"uri", "method", "interval"}, new String[]{"/", "POST", "10"}), is(3.0));
@@ -163,4 +183,151 @@ public class JerseyStatisticsCollectorTest {
     assertThat(collectorRegistry.getSampleValue("jersey_requests_per_second_total", new String[]{"uri", "method", "interval"}, new String[]{"/path", "POST", "100"}), is(5.0));
 
   }
+
+  @Test
+  public void shouldEmitOneFamilyPerMetricName() {
+    Map<Integer, Long> responseCodes = new HashMap<>();
+    responseCodes.put(200, 1L);
+    responseCodes.put(500, 2L);
+    when(responseStatistics.getResponseCodes()).thenReturn(responseCodes);
+    Map<Class<?>, Long> exceptionMapperExecutionCounts = new HashMap<>();
+    exceptionMapperExecutionCounts.put(IllegalStateException.class, 4L);
+    exceptionMapperExecutionCounts.put(IllegalArgumentException.class, 5L);
+    when(exceptionMapperStatistics.getExceptionMapperExecutions()).thenReturn(exceptionMapperExecutionCounts);
+
+    List<Collector.MetricFamilySamples> families = new JerseyStatisticsCollector(monitoringStatistics).collect();
+
+    Set<String> names = new HashSet<>();
+    for (Collector.MetricFamilySamples family : families) {
+      assertThat(family.name + " emitted twice", names.add(family.name), is(true));
+    }
+  }
+
+  @Test
+  public void shouldExportScrapeMetricsIfEnabled() {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(2, 2);
+    new JerseyStatisticsCollector(statistics).register(collectorRegistry);
+    assertThat(collectorRegistry.getSampleValue("jersey_exporter_samples"), nullValue());
+
+    collectorRegistry = new CollectorRegistry();
+    new JerseyStatisticsCollector(statistics).exportScrapeMetrics().register(collectorRegistry);
+
+    assertThat(collectorRegistry.getSampleValue("jersey_exporter_families"), is(10.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_exporter_samples"), is(47.0));
+    for (String section : new String[]{"exception_mappers", "responses", "uris"}) {
+      assertThat(collectorRegistry.getSampleValue("jersey_exporter_collect_duration_seconds",
+          new String[]{"section"}, new String[]{section}) >= 0.0, is(true));
+    }
+
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(allocationBean.isThreadAllocatedMemorySupported()
+        && allocationBean.isThreadAllocatedMemoryEnabled());
+    assertThat(collectorRegistry.getSampleValue("jersey_exporter_allocated_bytes") > 0.0,
+        is(true));
+  }
+
+  @Test
+  public void shouldFoldLeastRequestedSeriesPastLimit() {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(10, 2);
+    new JerseyStatisticsCollector(statistics, 4).register(collectorRegistry);
+
+    String[] labelNames = new String[]{"uri", "method", "interval"};
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/9", "GET", "0"}), is(9.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/8", "POST", "0"}), is(8.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/7", "GET", "0"}), nullValue());
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"__other__", "GET", "0"}), is(28.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"__other__", "POST", "1"}), is(28.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_duration_max_seconds", labelNames, new String[]{"__other__", "GET", "0"}), is(0.02));
+    assertThat(collectorRegistry.getSampleValue("jersey_uri_series_dropped"), is(16.0));
+
+    for (TimeWindowStatistics window : statistics.getUriStatistics().get("/resource/0").getResourceMethodStatistics().values().iterator().next().getMethodStatistics().getTimeWindowStatistics().values()) {
+      ((SyntheticMonitoringStatistics.Window) window).setRequestCount(1000L);
+    }
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "GET", "0"}), is(1000.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_uri_series_dropped"), is(16.0));
+  }
+
+  @Test
+  public void shouldNotFoldSeriesWithinLimit() {
+    new JerseyStatisticsCollector(new SyntheticMonitoringStatistics(2, 1), 4).register(collectorRegistry);
+
+    String[] labelNames = new String[]{"uri", "method", "interval"};
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "GET", "0"}), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"__other__", "GET", "0"}), nullValue());
+    assertThat(collectorRegistry.getSampleValue("jersey_uri_series_dropped"), is(0.0));
+  }
+
+  @Test
+  public void shouldReuseSamplesOfIdleMethods() {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(2, 2);
+    JerseyStatisticsCollector collector = new JerseyStatisticsCollector(statistics);
+
+    List<Collector.MetricFamilySamples.Sample> first = samples(collector.collect(), "jersey_request_count");
+    List<Collector.MetricFamilySamples.Sample> second = samples(collector.collect(), "jersey_request_count");
+    // /resource/0 has no requests, /resource/1 has requests in its limited window
+    assertThat(second.get(0), sameInstance(first.get(0)));
+    assertThat(second.get(1), sameInstance(first.get(1)));
+    assertThat(second.get(4), not(sameInstance(first.get(4))));
+
+    for (TimeWindowStatistics window : statistics.getUriStatistics().get("/resource/0").getResourceMethodStatistics().values().iterator().next().getMethodStatistics().getTimeWindowStatistics().values()) {
+      ((SyntheticMonitoringStatistics.Window) window).setRequestCount(7L);
+    }
+    List<Collector.MetricFamilySamples.Sample> third = samples(collector.collect(), "jersey_request_count");
+    assertThat(third.get(0).value, is(7.0));
+    assertThat(third.get(1).value, is(7.0));
+    assertThat(third.get(2), sameInstance(first.get(2)));
+  }
+
+  @Test
+  public void shouldExpireIdleMethods() throws Exception {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(1, 1);
+    new JerseyStatisticsCollector(statistics).expireIdleMethods(1, TimeUnit.MILLISECONDS).register(collectorRegistry);
+
+    String[] labelNames = new String[]{"uri", "method", "interval"};
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "GET", "0"}), is(0.0));
+    Thread.sleep(10);
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "GET", "0"}), nullValue());
+
+    for (TimeWindowStatistics window : statistics.getUriStatistics().get("/resource/0").getResourceMethodStatistics().values().iterator().next().getMethodStatistics().getTimeWindowStatistics().values()) {
+      ((SyntheticMonitoringStatistics.Window) window).setRequestCount(3L);
+    }
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "GET", "0"}), is(3.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/0", "POST", "0"}), nullValue());
+  }
+
+  @Test
+  public void shouldNotLimitSeriesOfExpiredMethods() throws Exception {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(2, 1);
+    new JerseyStatisticsCollector(statistics, 1).expireIdleMethods(1, TimeUnit.MILLISECONDS).register(collectorRegistry);
+
+    assertThat(collectorRegistry.getSampleValue("jersey_uri_series_dropped"), is(3.0));
+    Thread.sleep(10);
+    for (TimeWindowStatistics window : statistics.getUriStatistics().get("/resource/1").getResourceMethodStatistics().values().iterator().next().getMethodStatistics().getTimeWindowStatistics().values()) {
+      ((SyntheticMonitoringStatistics.Window) window).setRequestCount(5L);
+    }
+
+    String[] labelNames = new String[]{"uri", "method", "interval"};
+    assertThat(collectorRegistry.getSampleValue("jersey_uri_series_dropped"), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{"/resource/1", "GET", "0"}), is(5.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", labelNames, new String[]{JerseyStatisticsCollector.OTHER_URI, "GET", "0"}), nullValue());
+  }
+
+  private static List<Collector.MetricFamilySamples.Sample> samples(List<Collector.MetricFamilySamples> metrics, String name) {
+    for (Collector.MetricFamilySamples family : metrics) {
+      if (family.name.equals(name)) {
+        return family.samples;
+      }
+    }
+    throw new AssertionError("No family " + name);
+  }
+
+  private static class NoOpInflector implements Inflector<ContainerRequestContext, String> {
+
+    @Override
+    public String apply(ContainerRequestContext containerRequestContext) {
+      return "";
+    }
+  }
 }
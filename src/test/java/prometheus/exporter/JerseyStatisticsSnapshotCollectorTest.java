@@ -0,0 +1,59 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JerseyStatisticsSnapshotCollectorTest {
+
+  private static final String[] URI_LABELS = {"uri", "method", "interval"};
+
+  private CollectorRegistry collectorRegistry;
+  private JerseyStatisticsSnapshotCollector collector;
+
+  @Before
+  public void before() {
+    collectorRegistry = new CollectorRegistry();
+    collector = new JerseyStatisticsSnapshotCollector().register(collectorRegistry);
+  }
+
+  @Test
+  public void shouldPublishNothingBeforeFirstStatistics() {
+    assertThat(collectorRegistry.getSampleValue("jersey_statistics_snapshot_age_seconds"),
+        nullValue());
+  }
+
+  @Test
+  public void shouldPublishLatestSnapshot() {
+    SyntheticMonitoringStatistics statistics = new SyntheticMonitoringStatistics(1, 2);
+    collector.onStatistics(statistics);
+
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"/resource/0", "GET", "1"}), is(0.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_response_count",
+        new String[]{"response_code"}, new String[]{"200"}), is(1000.0));
+    assertThat(collectorRegistry.getSampleValue("jersey_statistics_snapshot_age_seconds"),
+        notNullValue());
+
+    window(statistics, 0L).setRequestCount(7L);
+    window(statistics, 1000L).setRequestCount(7L);
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"/resource/0", "GET", "1"}), is(0.0));
+
+    collector.onStatistics(statistics);
+    assertThat(collectorRegistry.getSampleValue("jersey_request_count", URI_LABELS,
+        new String[]{"/resource/0", "GET", "1"}), is(7.0));
+  }
+
+  private static SyntheticMonitoringStatistics.Window window(
+      SyntheticMonitoringStatistics statistics, long timeWindow) {
+    return (SyntheticMonitoringStatistics.Window) statistics.getUriStatistics().get("/resource/0")
+        .getResourceMethodStatistics().values().iterator().next().getMethodStatistics()
+        .getTimeWindowStatistics().get(timeWindow);
+  }
+}
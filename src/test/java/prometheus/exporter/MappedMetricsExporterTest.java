@@ -0,0 +1,221 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedMetricsExporterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private CollectorRegistry collectorRegistry;
+  private Path file;
+  private MappedMetricsExporter exporter;
+
+  @Before
+  public void before() throws Exception {
+    collectorRegistry = new CollectorRegistry();
+    file = folder.getRoot().toPath().resolve("metrics.bin");
+    exporter = new MappedMetricsExporter(file, collectorRegistry);
+  }
+
+  @After
+  public void after() throws Exception {
+    exporter.close();
+  }
+
+  @Test
+  public void shouldReadNothingBeforeFirstPublication() throws Exception {
+    assertThat(MappedMetricsReader.read(file).isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldRenderLikeTextFormat() throws Exception {
+    new JerseyStatisticsCollector(new SyntheticMonitoringStatistics(3, 2))
+        .register(collectorRegistry);
+    exporter.publish();
+
+    assertThat(render(MappedMetricsReader.read(file)), is(textFormat()));
+  }
+
+  @Test
+  public void shouldUpdateValuesAndLayout() throws Exception {
+    Gauge gauge = Gauge.build("test_gauge", "Test gauge").labelNames("name")
+        .register(collectorRegistry);
+    gauge.labels("a").set(1);
+    exporter.publish();
+    gauge.labels("a").set(2);
+    exporter.publish();
+
+    assertThat(render(MappedMetricsReader.read(file)), is(textFormat()));
+
+    gauge.labels("b").set(3);
+    exporter.publish();
+    String text = render(MappedMetricsReader.read(file));
+    assertThat(text, is(textFormat()));
+    assertThat(text, containsString("test_gauge{name=\"b\",} 3.0"));
+  }
+
+  @Test
+  public void shouldFindSeriesThatMoved() throws Exception {
+    AtomicBoolean swapped = new AtomicBoolean();
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        List<String> labelNames = Collections.singletonList("name");
+        MetricFamilySamples.Sample a = new MetricFamilySamples.Sample("test_gauge", labelNames,
+            Collections.singletonList("a"), swapped.get() ? 10 : 1);
+        MetricFamilySamples.Sample b = new MetricFamilySamples.Sample("test_gauge", labelNames,
+            Collections.singletonList("b"), swapped.get() ? 20 : 2);
+        return Collections.singletonList(new MetricFamilySamples("test_gauge", Type.GAUGE,
+            "Test gauge", swapped.get() ? Arrays.asList(b, a) : Arrays.asList(a, b)));
+      }
+    }.register(collectorRegistry);
+    exporter.publish();
+    swapped.set(true);
+    exporter.publish();
+
+    String text = render(MappedMetricsReader.read(file));
+    assertThat(text, containsString("test_gauge{name=\"a\",} 10.0"));
+    assertThat(text, containsString("test_gauge{name=\"b\",} 20.0"));
+  }
+
+  @Test
+  public void shouldGrowBeyondInitialMapping() throws Exception {
+    new JerseyStatisticsCollector(new SyntheticMonitoringStatistics(3000, 6))
+        .register(collectorRegistry);
+    exporter.publish();
+
+    assertThat(Files.size(file) > 1 << 20, is(true));
+    assertThat(render(MappedMetricsReader.read(file)), is(textFormat()));
+  }
+
+  @Test
+  public void shouldWriteTextfileAtomically() throws Exception {
+    Gauge.build("test_gauge", "Test gauge").register(collectorRegistry).set(5);
+    exporter.publish();
+    Path textfile = folder.getRoot().toPath().resolve("app.prom");
+
+    MappedMetricsReader.main(new String[]{file.toString(), textfile.toString()});
+
+    assertThat(new String(Files.readAllBytes(textfile), StandardCharsets.UTF_8),
+        is(textFormat()));
+    assertThat(Files.exists(textfile.resolveSibling("app.prom.tmp")), is(false));
+  }
+
+  @Test
+  public void shouldReadConsistentValuesWhilePublishing() throws Exception {
+    Gauge gauge = Gauge.build("test_gauge", "Test gauge").labelNames("name")
+        .register(collectorRegistry);
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      names.add("series" + i);
+      gauge.labels("series" + i).set(0);
+    }
+    exporter.publish();
+    AtomicBoolean reading = new AtomicBoolean(true);
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> publications = writer.submit(() -> {
+        int publication = 0;
+        while (reading.get()) {
+          publication++;
+          if (publication % 50 == 0) {
+            names.add("added" + publication);
+          }
+          for (String name : names) {
+            gauge.labels(name).set(publication);
+          }
+          exporter.publish();
+        }
+        return publication;
+      });
+
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+      int reads = 0;
+      while (System.nanoTime() - deadline < 0 || reads < 10) {
+        List<MetricFamilySamples.Sample> samples = MappedMetricsReader.read(file).get(0).samples;
+        double value = samples.get(0).value;
+        for (MetricFamilySamples.Sample sample : samples) {
+          assertThat(sample.labelValues + " of a torn publication", sample.value, is(value));
+        }
+        reads++;
+      }
+      reading.set(false);
+      assertThat(publications.get() > 1, is(true));
+    } finally {
+      reading.set(false);
+      writer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldKeepReplacedFileReadableForExistingMappings() throws Exception {
+    Gauge.build("test_gauge", "Test gauge").register(collectorRegistry).set(5);
+    exporter.publish();
+    exporter.close();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      exporter = new MappedMetricsExporter(file, collectorRegistry);
+
+      assertThat(mapped.getInt(0), is(MappedMetricsExporter.MAGIC));
+      assertThat(mapped.get(mapped.capacity() - 1), is((byte) 0));
+    }
+    assertThat(MappedMetricsReader.read(file).isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldRejectPublicationAfterClose() throws Exception {
+    exporter.close();
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Exporter is closed");
+    exporter.publish();
+  }
+
+  private static String render(List<MetricFamilySamples> families) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MappedMetricsReader.write(families, out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private String textFormat() throws Exception {
+    StringWriter writer = new StringWriter();
+    TextFormat.write004(writer, collectorRegistry.metricFamilySamples());
+    return writer.toString();
+  }
+}
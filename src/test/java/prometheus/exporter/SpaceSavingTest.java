@@ -0,0 +1,55 @@
+package prometheus.exporter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+  @Test
+  public void shouldTrackHeavyHitters() {
+    SpaceSaving<String> table = new SpaceSaving<>(2);
+    String heavy = "heavy";
+    String light = "light";
+    String other = "other";
+
+    SpaceSaving.Slot<String> heavySlot = table.offer(heavy, null, 100L);
+    SpaceSaving.Slot<String> lightSlot = table.offer(light, null, 1L);
+    SpaceSaving.Slot<String> otherSlot = table.offer(other, null, 2L);
+
+    assertThat(table.size(), is(2));
+    assertThat(table.holds(heavySlot, heavy), is(true));
+    assertThat(table.holds(lightSlot, light), is(false));
+    assertThat(table.holds(otherSlot, other), is(true));
+    assertThat(otherSlot.getCount(), is(3L));
+    assertThat(otherSlot.getError(), is(1L));
+
+    heavySlot = table.offer(heavy, heavySlot, 5L);
+    assertThat(heavySlot.getCount(), is(105L));
+  }
+
+  @Test
+  public void shouldKeepHeapOrderAcrossRemovals() {
+    SpaceSaving<Integer> table = new SpaceSaving<>(8);
+    Integer[] keys = new Integer[8];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SpaceSaving.Slot<Integer>[] slots = new SpaceSaving.Slot[8];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = Integer.valueOf(i);
+      slots[i] = table.offer(keys[i], null, 10L * (8 - i));
+    }
+    table.remove(slots[7], keys[7]);
+    table.remove(slots[2], keys[2]);
+    assertThat(table.size(), is(6));
+
+    Integer newcomer = Integer.valueOf(100);
+    table.offer(newcomer, null, 1L);
+    table.offer(Integer.valueOf(101), null, 1L);
+    // Both free slots were reused, so the next key replaces one of the two newcomers.
+    SpaceSaving.Slot<Integer> replaced = table.offer(Integer.valueOf(102), null, 1L);
+    assertThat(table.holds(slots[6], keys[6]), is(true));
+    assertThat(replaced.getError(), is(1L));
+    assertThat(table.holds(slots[5], keys[5]), is(true));
+  }
+}
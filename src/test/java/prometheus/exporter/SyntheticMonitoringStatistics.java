@@ -0,0 +1,284 @@
+package prometheus.exporter;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.ws.rs.container.ContainerRequestContext;
+import org.glassfish.jersey.process.Inflector;
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ExceptionMapperStatistics;
+import org.glassfish.jersey.server.monitoring.ExecutionStatistics;
+import org.glassfish.jersey.server.monitoring.MonitoringStatistics;
+import org.glassfish.jersey.server.monitoring.ResourceMethodStatistics;
+import org.glassfish.jersey.server.monitoring.ResourceStatistics;
+import org.glassfish.jersey.server.monitoring.ResponseStatistics;
+import org.glassfish.jersey.server.monitoring.TimeWindowStatistics;
+
+/**
+ * Plain in-memory {@link MonitoringStatistics} with a configurable number of resources, for tests
+ * that must not be disturbed by the allocations of mocking frameworks. Also used by the benchmarks
+ * through the test-jar of this module.
+ */
+public class SyntheticMonitoringStatistics implements MonitoringStatistics {
+
+  static final long[] TIME_WINDOWS = {0L, 1000L, 15000L, 60000L, 900000L, 3600000L};
+
+  private final Map<String, ResourceStatistics> uriStatistics = new LinkedHashMap<>();
+  private final Map<Class<?>, ResourceStatistics> resourceClassStatistics = Collections.emptyMap();
+  private final Map<Integer, Long> responseCodes = new LinkedHashMap<>();
+  private final Map<Class<?>, Long> exceptionMapperExecutions = new LinkedHashMap<>();
+  private volatile long additionalRequests;
+
+  /**
+   * @param resources Number of resources, each with a GET and a POST method
+   * @param timeWindows Number of time windows per method, at most six
+   */
+  public SyntheticMonitoringStatistics(int resources, int timeWindows) {
+    for (int i = 0; i < resources; i++) {
+      String uri = "/resource/" + i;
+      Resource.Builder builder = Resource.builder(uri);
+      builder.addMethod("GET").handledBy(new NoOpInflector());
+      builder.addMethod("POST").handledBy(new NoOpInflector());
+      Map<ResourceMethod, ResourceMethodStatistics> methods = new LinkedHashMap<>();
+      for (ResourceMethod method : builder.build().getResourceMethods()) {
+        methods.put(method, new Method(method, new Execution(timeWindows, i)));
+      }
+      uriStatistics.put(uri, new Uri(methods));
+    }
+    responseCodes.put(200, 1000L);
+    responseCodes.put(404, 10L);
+    responseCodes.put(500, 1L);
+    exceptionMapperExecutions.put(IllegalStateException.class, 3L);
+  }
+
+  /**
+   * Adds requests to every time window of every method at once, so that all methods appear to be
+   * active in the next scrape.
+   */
+  public void addRequests(long count) {
+    additionalRequests += count;
+  }
+
+  @Override
+  public Map<String, ResourceStatistics> getUriStatistics() {
+    return uriStatistics;
+  }
+
+  @Override
+  public Map<Class<?>, ResourceStatistics> getResourceClassStatistics() {
+    return resourceClassStatistics;
+  }
+
+  @Override
+  public ExecutionStatistics getRequestStatistics() {
+    return new Execution(0, 0);
+  }
+
+  @Override
+  public ResponseStatistics getResponseStatistics() {
+    return new ResponseStatistics() {
+      @Override
+      public Integer getLastResponseCode() {
+        return 200;
+      }
+
+      @Override
+      public Map<Integer, Long> getResponseCodes() {
+        return responseCodes;
+      }
+
+      @Override
+      @SuppressWarnings("deprecation")
+      public ResponseStatistics snapshot() {
+        return this;
+      }
+    };
+  }
+
+  @Override
+  public ExceptionMapperStatistics getExceptionMapperStatistics() {
+    return new ExceptionMapperStatistics() {
+      @Override
+      public Map<Class<?>, Long> getExceptionMapperExecutions() {
+        return exceptionMapperExecutions;
+      }
+
+      @Override
+      public long getSuccessfulMappings() {
+        return 3L;
+      }
+
+      @Override
+      public long getUnsuccessfulMappings() {
+        return 0L;
+      }
+
+      @Override
+      public long getTotalMappings() {
+        return 3L;
+      }
+
+      @Override
+      @SuppressWarnings("deprecation")
+      public ExceptionMapperStatistics snapshot() {
+        return this;
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public MonitoringStatistics snapshot() {
+    return this;
+  }
+
+  private static class Uri implements ResourceStatistics {
+
+    private final Map<ResourceMethod, ResourceMethodStatistics> methods;
+
+    Uri(Map<ResourceMethod, ResourceMethodStatistics> methods) {
+      this.methods = methods;
+    }
+
+    @Override
+    public ExecutionStatistics getResourceMethodExecutionStatistics() {
+      return null;
+    }
+
+    @Override
+    public ExecutionStatistics getRequestExecutionStatistics() {
+      return null;
+    }
+
+    @Override
+    public Map<ResourceMethod, ResourceMethodStatistics> getResourceMethodStatistics() {
+      return methods;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ResourceStatistics snapshot() {
+      return this;
+    }
+  }
+
+  private static class Method implements ResourceMethodStatistics {
+
+    private final ResourceMethod method;
+    private final ExecutionStatistics execution;
+
+    Method(ResourceMethod method, ExecutionStatistics execution) {
+      this.method = method;
+      this.execution = execution;
+    }
+
+    @Override
+    public ExecutionStatistics getMethodStatistics() {
+      return execution;
+    }
+
+    @Override
+    public ExecutionStatistics getRequestStatistics() {
+      return execution;
+    }
+
+    @Override
+    public ResourceMethod getResourceMethod() {
+      return method;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ResourceMethodStatistics snapshot() {
+      return this;
+    }
+  }
+
+  class Execution implements ExecutionStatistics {
+
+    private final Map<Long, TimeWindowStatistics> windows = new LinkedHashMap<>();
+
+    Execution(int timeWindows, long requestCount) {
+      for (int i = 0; i < timeWindows; i++) {
+        windows.put(TIME_WINDOWS[i], new Window(TIME_WINDOWS[i], requestCount));
+      }
+    }
+
+    @Override
+    public Date getLastStartTime() {
+      return null;
+    }
+
+    @Override
+    public Map<Long, TimeWindowStatistics> getTimeWindowStatistics() {
+      return windows;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ExecutionStatistics snapshot() {
+      return this;
+    }
+  }
+
+  public class Window implements TimeWindowStatistics {
+
+    private final long timeWindow;
+    private long requestCount;
+
+    Window(long timeWindow, long requestCount) {
+      this.timeWindow = timeWindow;
+      this.requestCount = requestCount;
+    }
+
+    public void setRequestCount(long requestCount) {
+      this.requestCount = requestCount;
+    }
+
+    @Override
+    public long getTimeWindow() {
+      return timeWindow;
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+      return getRequestCount() / 60.0;
+    }
+
+    @Override
+    public long getMinimumDuration() {
+      return 1L;
+    }
+
+    @Override
+    public long getMaximumDuration() {
+      return 20L;
+    }
+
+    @Override
+    public long getAverageDuration() {
+      return 5L;
+    }
+
+    @Override
+    public long getRequestCount() {
+      return requestCount + additionalRequests;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public TimeWindowStatistics snapshot() {
+      return this;
+    }
+  }
+
+  private static class NoOpInflector implements Inflector<ContainerRequestContext, String> {
+
+    @Override
+    public String apply(ContainerRequestContext containerRequestContext) {
+      return "";
+    }
+  }
+}